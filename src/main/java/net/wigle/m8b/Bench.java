@@ -0,0 +1,339 @@
+package net.wigle.m8b;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import net.wigle.m8b.siphash.SipHash;
+import net.wigle.m8b.siphash.SipKey;
+import net.wigle.m8b.geodesy.mgrs;
+import net.wigle.m8b.geodesy.utm;
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * crude side by side timings of the hot paths, old vs new, on this box.
+ *
+ * each case runs a few warmup rounds, then reports the best round in ns per item,
+ * and heap bytes allocated per item where the jvm will tell us.
+ */
+final class Bench {
+
+    private static final int WARMUP = 3;
+    private static final int ROUNDS = 5;
+
+    /** cap on how much of the input file is pulled into memory */
+    private static final int MAXBYTES = 256 << 20;
+
+    /** byte[][] records cost ~40 bytes each, don't bother past this */
+    private static final int CMPMAX = 20000000;
+
+    private Bench() {}
+
+    /**
+     * String/substring/Double.parseDouble line parsing vs ObservationParser, over the first
+     * 256MB of fromFile. both parse and hash, neither projects (that part is shared).
+     */
+    static void parse(String fromFile, boolean tabs) throws Exception {
+	byte[] buf;
+	int len;
+	try (InputStream in = Files.newInputStream(new File(fromFile).toPath())) {
+	    buf = new byte[(int)Math.min(MAXBYTES,new File(fromFile).length())];
+	    len = 0;
+	    int r;
+	    while (len < buf.length && (r = in.read(buf,len,buf.length-len)) > 0) {
+		len += r;
+	    }
+	}
+
+	// line starts and ends, skipping the header and any partial last line
+	int lines = 0;
+	for (int i = 0; i < len; i++) {
+	    if (buf[i] == '\n') {
+		lines++;
+	    }
+	}
+	int[] ls = new int[lines];
+	int[] le = new int[lines];
+	int n = 0;
+	int s = -1;
+	for (int i = 0; i < len; i++) {
+	    if (buf[i] == '\n') {
+		if (s >= 0 && i > s) {
+		    ls[n] = s;
+		    le[n] = (buf[i-1] == '\r') ? i-1 : i;
+		    n++;
+		}
+		s = i+1;
+	    }
+	}
+	System.out.println("parse: "+n+" lines, "+len+" bytes");
+
+	final char sep = tabs ? '\t' : '|';
+	final int count = n;
+	final Charset utf8 = Charset.forName("UTF-8");
+	final SipKey sipkey = new SipKey(new byte[16]);
+	final byte[] macbytes = new byte[6];
+	final ObservationParser op = new ObservationParser(sep);
+	final long[] sum = new long[2];
+
+	run("string", count, () -> {
+	    long h = 0;
+	    for (int i = 0; i < count; i++) {
+		String line = new String(buf,ls[i],le[i]-ls[i],utf8);
+		int b1 = line.indexOf(sep);
+		int b2 = line.indexOf(sep,b1+1);
+		double lat = Double.parseDouble(line.substring(b1+1,b2));
+		double lon = Double.parseDouble(line.substring(b2+1));
+		int key = m8b.extractIntKeyFrom(line.substring(0,17),macbytes,sipkey,32);
+		h = (h * 31) + key + Double.doubleToLongBits(lat) + (Double.doubleToLongBits(lon) * 7);
+	    }
+	    sum[0] = h;
+	});
+
+	run("bytes", count, () -> {
+	    long h = 0;
+	    for (int i = 0; i < count; i++) {
+		op.parse(buf,ls[i],le[i]);
+		int key = op.key(sipkey,32);
+		h = (h * 31) + key + Double.doubleToLongBits(op.lat) + (Double.doubleToLongBits(op.lon) * 7);
+	    }
+	    sum[1] = h;
+	});
+
+	System.out.println(sum[0] == sum[1] ? "results match" : "RESULTS DIFFER");
+    }
+
+    /**
+     * comparison sort of 13 byte records with m8b.CMP vs Arrays.sort and RadixSort of packed
+     * longs, over n random records. every round sorts a fresh copy of the same input.
+     */
+    static void sort(int n, int threads) {
+	Random r = new Random(1);
+	long[] recs = new long[n];
+	for (int i = 0; i < n; i++) {
+	    recs[i] = Records.pack(r.nextInt(),r.nextInt(mgrs.CELLS));
+	}
+	System.out.println("sort: "+n+" records, "+threads+" threads");
+
+	final long[] a = new long[n];
+	final long[][] out = new long[4][];
+
+	if (n <= CMPMAX) {
+	    final byte[][] brecs = new byte[n][];
+	    ByteBuffer bb = ByteBuffer.allocate(Records.RECORDSIZE).order(ByteOrder.LITTLE_ENDIAN);
+	    byte[] tmp = new byte[9];
+	    for (int i = 0; i < n; i++) {
+		bb.clear();
+		Records.put(bb,recs[i],tmp);
+		brecs[i] = bb.array().clone();
+	    }
+	    final byte[][] b = new byte[n][];
+	    run("cmp", n, () -> {
+		System.arraycopy(brecs,0,b,0,n);
+		Arrays.sort(b,0,n,m8b.CMP);
+	    });
+	    out[0] = new long[n];
+	    for (int i = 0; i < n; i++) {
+		out[0][i] = Records.get(ByteBuffer.wrap(b[i]).order(ByteOrder.LITTLE_ENDIAN),tmp);
+	    }
+	} else {
+	    System.out.println("cmp        skipped over "+CMPMAX+" records");
+	}
+
+	run("arrays", n, () -> {
+	    System.arraycopy(recs,0,a,0,n);
+	    Arrays.sort(a,0,n);
+	});
+	out[1] = a.clone();
+
+	final RadixSort rs1 = new RadixSort(n,1);
+	run("radix", n, () -> {
+	    System.arraycopy(recs,0,a,0,n);
+	    rs1.sort(a,n);
+	});
+	out[2] = a.clone();
+
+	final RadixSort rsp = new RadixSort(n,threads);
+	run("radix-p", n, () -> {
+	    System.arraycopy(recs,0,a,0,n);
+	    rsp.sort(a,n);
+	});
+	out[3] = a.clone();
+
+	boolean same = Arrays.equals(out[1],out[2]) && Arrays.equals(out[1],out[3]) && (out[0] == null || Arrays.equals(out[0],out[1]));
+	System.out.println(same ? "results match" : "RESULTS DIFFER");
+    }
+
+    /**
+     * SipHash.digest of 6 byte arrays vs SipHash.digestMac of longs, over n random macs
+     * (and a zero key, as m8b uses). every mac is also checked for the same digest.
+     */
+    static void siphash(int n) {
+	Random r = new Random(1);
+	final long[] macs = new long[n];
+	final byte[][] bmacs = new byte[n][6];
+	for (int i = 0; i < n; i++) {
+	    macs[i] = r.nextLong() & 0xffffffffffffL;
+	    for (int j = 0; j < 6; j++) {
+		bmacs[i][j] = (byte)(macs[i] >>> (40 - (j*8)));
+	    }
+	}
+	System.out.println("siphash: "+n+" macs");
+
+	final SipKey sipkey = new SipKey(new byte[16]);
+	final long[] sum = new long[2];
+
+	run("digest", n, () -> {
+	    long h = 0;
+	    for (int i = 0; i < n; i++) {
+		h += SipHash.digest(sipkey,bmacs[i]);
+	    }
+	    sum[0] = h;
+	});
+
+	run("digestMac", n, () -> {
+	    long h = 0;
+	    for (int i = 0; i < n; i++) {
+		h += SipHash.digestMac(sipkey,macs[i]);
+	    }
+	    sum[1] = h;
+	});
+
+	boolean same = sum[0] == sum[1];
+	for (int i = 0; i < n && same; i++) {
+	    same = SipHash.digest(sipkey,bmacs[i]) == SipHash.digestMac(sipkey,macs[i]);
+	}
+	System.out.println(same ? "results match" : "RESULTS DIFFER");
+    }
+
+    /** a few dense places, lat/lon */
+    private static final double[][] CITIES = {
+	{40.0,-75.2}, {51.5,-0.1}, {35.7,139.7}, {-33.9,151.2}, {48.9,2.3}, {37.8,-122.4}
+    };
+
+    /**
+     * utm.fromLatLon/mgrs.fromUtm/populateBytes per point vs the bulk utm.toBytes vs
+     * the bulk path behind a CellCache, over n random points inside the UTM limits, or
+     * when spread &gt; 0, normally distributed that many degrees around a few cities.
+     */
+    static void project(int n, double spread) {
+	Random r = new Random(1);
+	final double[] lat = new double[n];
+	final double[] lon = new double[n];
+	for (int i = 0; i < n; i++) {
+	    if (spread > 0) {
+		double[] c = CITIES[r.nextInt(CITIES.length)];
+		lat[i] = c[0] + (r.nextGaussian() * spread);
+		lon[i] = c[1] + (r.nextGaussian() * spread);
+	    } else {
+		lat[i] = -80 + (164 * r.nextDouble());
+		lon[i] = -180 + (360 * r.nextDouble());
+	    }
+	}
+	System.out.println("project: "+n+" points"+(spread > 0 ? ", spread "+spread : ""));
+
+	final byte[][] out = new byte[3][n*9];
+
+	run("objects", n, () -> {
+	    byte[] mstr = new byte[9];
+	    for (int i = 0; i < n; i++) {
+		mgrs.fromUtm(utm.fromLatLon(lat[i],lon[i])).populateBytes(mstr);
+		System.arraycopy(mstr,0,out[0],i*9,9);
+	    }
+	});
+
+	run("bulk", n, () -> {
+	    utm.toBytes(lat,lon,n,out[1]);
+	});
+
+	final long[] hits = new long[2];
+	run("cached", n, () -> {
+	    // cold every round, as ingest starts
+	    CellCache cache = new CellCache();
+	    double[] one = new double[1];
+	    double[] two = new double[1];
+	    byte[] tmp = new byte[9];
+	    for (int i = 0; i < n; i++) {
+		int cell = cache.cell(lat[i],lon[i]);
+		if (cell < 0) {
+		    one[0] = lat[i];
+		    two[0] = lon[i];
+		    utm.toBytes(one,two,1,tmp);
+		    System.arraycopy(tmp,0,out[2],i*9,9);
+		} else {
+		    mgrs.cellToBytes(cell,out[2],i*9);
+		}
+	    }
+	    hits[0] = cache.hits;
+	    hits[1] = cache.lookups;
+	});
+	System.out.printf("cell cache hit %d of %d points (%.1f%%)\n",hits[0],hits[1],(100.0*hits[0])/hits[1]);
+
+	System.out.println(Arrays.equals(out[0],out[1]) && Arrays.equals(out[0],out[2]) ? "results match" : "RESULTS DIFFER");
+    }
+
+    /**
+     * time r over items, print best ns/item and allocation/item
+     */
+    static void run(String name, long items, Runnable r) {
+	long best = Long.MAX_VALUE;
+	long alloc = -1;
+	for (int i = 0; i < WARMUP + ROUNDS; i++) {
+	    long a0 = allocated();
+	    long t0 = System.nanoTime();
+	    r.run();
+	    long t = System.nanoTime() - t0;
+	    long a = a0 < 0 ? -1 : allocated() - a0;
+	    if (i >= WARMUP && t < best) {
+		best = t;
+		alloc = a;
+	    }
+	}
+	System.out.printf("%-10s %10.1f ns/item %10.1f B/item %8.1f M items/s\n",
+			  name, (double)best/items, alloc < 0 ? Double.NaN : (double)alloc/items, items*1e3/best);
+    }
+
+    /** bytes allocated by this thread so far, -1 if the jvm won't say */
+    private static long allocated() {
+	ThreadMXBean tb = ManagementFactory.getThreadMXBean();
+	if (tb instanceof com.sun.management.ThreadMXBean) {
+	    return ((com.sun.management.ThreadMXBean)tb).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	return -1;
+    }
+}
@@ -0,0 +1,350 @@
+package net.wigle.m8b;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * a block compressed (version 4) m8b file, see BlockWriter for the layout.
+ *
+ * the block index is read onto the heap at open, a lookup binary-searches it and
+ * inflates the single block that can hold the key. blocks are read with positional
+ * reads, so a reader can be shared between threads. each thread inflates with its own
+ * inflater and buffers, reset and reused from block to block.
+ */
+final class BlockReader extends M8bReader {
+
+    private final FileChannel ch;
+
+    private final int[] firstkeys;
+    private final int[] counts;
+
+    /** file position of each block, plus one for the end of the last */
+    private final long[] offsets;
+
+    private final long records;
+    private final boolean signed;
+
+    /** inflater and buffers, reused block to block on each thread */
+    private static final class Scratch {
+	final Inflater inf = new Inflater(true);
+	byte[] z = new byte[1 << 12];
+	ByteBuffer zb = ByteBuffer.wrap(z);
+	byte[] raw = new byte[1 << 16];
+	/** in use by a decode further up the stack, a sink that decodes again gets its own */
+	boolean busy;
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    BlockReader(FileChannel ch, String[] s, int bodyoffset) throws IOException {
+	super(s);
+	this.ch = ch;
+
+	long size = ch.size();
+	if (size - bodyoffset < 8) {
+	    throw new IOException("truncated block index");
+	}
+	long index = bodyoffset + read(size-8,8).getLong();
+	long entries = (size - 8 - index) / BlockWriter.INDEXENTRY;
+	if (index < bodyoffset || entries > Integer.MAX_VALUE) {
+	    throw new IOException("malformed block index");
+	}
+	int nblocks = (int)entries;
+	firstkeys = new int[nblocks];
+	counts = new int[nblocks];
+	offsets = new long[nblocks+1];
+
+	ByteBuffer ib = read(index,nblocks*BlockWriter.INDEXENTRY);
+	long r = 0;
+	for (int i = 0; i < nblocks; i++) {
+	    firstkeys[i] = ib.getInt();
+	    counts[i] = ib.getInt();
+	    offsets[i] = bodyoffset + ib.getLong();
+	    r += counts[i];
+	}
+	offsets[nblocks] = index;
+	records = r;
+
+	// legacy signed order, as FlatReader tells it: the first key above the last, unsigned.
+	// the block first keys alone can't say, the last block may be the one crossing zero
+	int[] last = {0};
+	if (nblocks > 0) {
+	    decode(nblocks-1,(k,cell)->last[0] = k);
+	}
+	signed = records > 1 && Integer.compareUnsigned(firstkeys[0],last[0]) > 0;
+    }
+
+    public long size() {
+	return records;
+    }
+
+    /** number of compressed blocks */
+    int blocks() {
+	return firstkeys.length;
+    }
+
+    /**
+     * the last block starting at or before key, -1 if there is none
+     */
+    private int block(int key) {
+	int lo = 0;
+	int hi = firstkeys.length;
+	while (lo < hi) {
+	    int mid = (lo + hi) >>> 1;
+	    int c = signed ? Integer.compare(firstkeys[mid],key) : Integer.compareUnsigned(firstkeys[mid],key);
+	    if (c <= 0) {
+		lo = mid + 1;
+	    } else {
+		hi = mid;
+	    }
+	}
+	return lo - 1;
+    }
+
+    int find(int key, IntConsumer cells) throws IOException {
+	int b = block(key);
+	if (b < 0) {
+	    return 0;
+	}
+	int[] n = {0};
+	decode(b,(k,cell)->{
+	    if (k == key) {
+		cells.accept(cell);
+		n[0]++;
+	    }
+	});
+	return n[0];
+    }
+
+    /**
+     * as M8bReader.lookupAll, but each block is inflated once for all its keys
+     */
+    public int[][] lookupAll(int[] keys) throws IOException {
+	int[][] cells = new int[keys.length][];
+	// keys in file order, so blocks only go forward and a block's keys come as its records do
+	int flip = signed ? Integer.MIN_VALUE : 0;
+	int[] fk = new int[keys.length];
+	for (int i = 0; i < keys.length; i++) {
+	    fk[i] = keys[i] ^ flip;
+	}
+	int[] order = ascending(fk);
+	Merge m = new Merge(keys,fk,order,cells,flip);
+	int j = 0;
+	while (j < order.length) {
+	    int b = block(keys[order[j]]);
+	    // the keys that land in block b, b of -1 is before the first block
+	    int e = j + 1;
+	    while (e < order.length && block(keys[order[e]]) == b) {
+		e++;
+	    }
+	    boolean any = false;
+	    for (int i = j; i < e; i++) {
+		if (filter == null || filter.mightContain(keys[order[i]])) {
+		    any = true;
+		}
+	    }
+	    m.w = j;
+	    m.to = e;
+	    if (b >= 0 && any) {
+		decode(b,m);
+	    }
+	    while (m.w < e) {
+		m.done();
+	    }
+	    j = e;
+	}
+	return cells;
+    }
+
+    private static final int[] NONE = new int[0];
+
+    /**
+     * walks a block's records alongside the wanted keys order[w..to), both in file order,
+     * collecting the cells of each key as it goes by
+     */
+    private static final class Merge implements RecordSink {
+	final int[] keys;
+	final int[] fk;
+	final int[] order;
+	final int[][] cells;
+	final int flip;
+	int w;
+	int to;
+	int[] buf = new int[16];
+	int n;
+
+	Merge(int[] keys, int[] fk, int[] order, int[][] cells, int flip) {
+	    this.keys = keys;
+	    this.fk = fk;
+	    this.order = order;
+	    this.cells = cells;
+	    this.flip = flip;
+	}
+
+	@Override
+	public void accept(int key, int cell) {
+	    int f = key ^ flip;
+	    while (w < to && Integer.compareUnsigned(fk[order[w]],f) < 0) {
+		done();
+	    }
+	    if (w < to && keys[order[w]] == key) {
+		if (n == buf.length) {
+		    buf = Arrays.copyOf(buf,n*2);
+		}
+		buf[n++] = cell;
+	    }
+	}
+
+	/** keys[order[w]] has all its cells, and so do repeats of it */
+	void done() {
+	    int k = keys[order[w]];
+	    int[] c = n == 0 ? NONE : Arrays.copyOf(buf,n);
+	    cells[order[w++]] = c;
+	    while (w < to && keys[order[w]] == k) {
+		cells[order[w++]] = c.clone();
+	    }
+	    n = 0;
+	}
+    }
+
+    public void forEach(RecordSink sink) throws IOException {
+	for (int b = 0; b < firstkeys.length; b++) {
+	    decode(b,sink);
+	}
+    }
+
+    /**
+     * inflate block b and hand its records to sink
+     */
+    private void decode(int b, RecordSink sink) throws IOException {
+	Scratch sc = SCRATCH.get();
+	if (sc.busy) {
+	    sc = new Scratch();
+	}
+	sc.busy = true;
+	try {
+	    decode(b,sink,sc);
+	} finally {
+	    sc.busy = false;
+	}
+    }
+
+    private void decode(int b, RecordSink sink, Scratch sc) throws IOException {
+	int zlen = (int)(offsets[b+1] - offsets[b]);
+	if (sc.z.length < zlen+1) { // nowrap wants a dummy byte on the end
+	    sc.z = new byte[Math.max(zlen+1,sc.z.length*2)];
+	    sc.zb = ByteBuffer.wrap(sc.z);
+	}
+	byte[] z = sc.z;
+	ByteBuffer zb = sc.zb;
+	zb.clear().limit(zlen);
+	long p = offsets[b];
+	while (zb.hasRemaining()) {
+	    int r = ch.read(zb,p);
+	    if (r < 0) {
+		throw new IOException("truncated block "+b);
+	    }
+	    p += r;
+	}
+	z[zlen] = 0;
+
+	int most = counts[b]*BlockWriter.MAXRECORD;
+	if (sc.raw.length < most) {
+	    sc.raw = new byte[Math.max(most,sc.raw.length*2)];
+	}
+	byte[] raw = sc.raw;
+	int rawlen;
+	Inflater inf = sc.inf;
+	inf.reset();
+	try {
+	    inf.setInput(z,0,zlen+1);
+	    rawlen = inf.inflate(raw,0,most);
+	} catch (DataFormatException e) {
+	    throw new IOException("corrupt block "+b,e);
+	}
+
+	int i = 0;
+	int key = firstkeys[b];
+	int cell = 0;
+	for (int j = 0; j < counts[b]; j++) {
+	    // varint key delta, then varint cell (delta within a key run)
+	    int v = 0;
+	    int shift = 0;
+	    byte c;
+	    do {
+		c = raw[i++];
+		v |= (c & 0x7f) << shift;
+		shift += 7;
+	    } while (c < 0);
+	    int dk = v;
+
+	    v = 0;
+	    shift = 0;
+	    do {
+		c = raw[i++];
+		v |= (c & 0x7f) << shift;
+		shift += 7;
+	    } while (c < 0);
+
+	    key += dk;
+	    cell = (j > 0 && dk == 0) ? cell + BlockWriter.unzigzag(v) : v;
+	    sink.accept(key,cell);
+	}
+	if (i != rawlen) {
+	    throw new IOException("corrupt block "+b);
+	}
+    }
+
+    /** len bytes at pos, LE */
+    private ByteBuffer read(long pos, int len) throws IOException {
+	ByteBuffer bb = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+	while (bb.hasRemaining()) {
+	    if (ch.read(bb,pos+bb.position()) < 0) {
+		throw new IOException("truncated block index");
+	    }
+	}
+	bb.flip();
+	return bb;
+    }
+
+    public void close() throws IOException {
+	ch.close();
+    }
+}
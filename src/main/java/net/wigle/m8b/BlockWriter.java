@@ -0,0 +1,196 @@
+package net.wigle.m8b;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * writes the body of a version 4 (block compressed) m8b, records in key order.
+ *
+ * records are cut into blocks of about BLOCKRECORDS, never splitting the run of a
+ * key, and each block is deflated on its own so a lookup only inflates the one
+ * block that can hold its key. the body is:
+ *
+ *   blocks  - raw DEFLATE of varints, per record:
+ *             key - previous key (mod 2^32, the first record of a block is 0)
+ *             zigzag(cell - previous cell) within a key run, else the cell
+ *   index   - per block: LE int32 first key, LE int32 records, LE int64 block offset
+ *   trailer - LE int64 index offset
+ *
+ * offsets are from the start of the body.
+ */
+final class BlockWriter implements Closeable {
+
+    /** records per block, a block runs over to finish a key */
+    static final int BLOCKRECORDS = 4096;
+
+    /** bytes per index entry */
+    static final int INDEXENTRY = 4+4+8;
+
+    /** most bytes a record takes as varints */
+    static final int MAXRECORD = 5+5;
+
+    private final WritableByteChannel out;
+    private final Deflater def = new Deflater(Deflater.BEST_COMPRESSION,true);
+    private final ByteBuffer zbuf = ByteBuffer.allocate(64 << 10).order(ByteOrder.LITTLE_ENDIAN);
+
+    private byte[] raw = new byte[BLOCKRECORDS*MAXRECORD];
+    private int rawlen;
+
+    private int n;
+    private int firstkey;
+    private int lastkey;
+    private int lastcell;
+
+    /** body bytes written so far */
+    private long pos;
+
+    private int blocks;
+    private int[] firstkeys = new int[64];
+    private int[] counts = new int[64];
+    private long[] offsets = new long[64];
+
+    /** records added */
+    long written;
+
+    /**
+     * out is positioned just after the header, it is closed by close()
+     */
+    BlockWriter(WritableByteChannel out) {
+	this.out = out;
+    }
+
+    /**
+     * add the next record, keys must come in file order
+     */
+    void add(int key, int cell) throws IOException {
+	if (n >= BLOCKRECORDS && key != lastkey) {
+	    block();
+	}
+	if (n == 0) {
+	    firstkey = key;
+	    lastkey = key;
+	}
+	if (rawlen + MAXRECORD > raw.length) {
+	    raw = Arrays.copyOf(raw,raw.length*2);
+	}
+	varint(key - lastkey);
+	varint((n > 0 && key == lastkey) ? zigzag(cell - lastcell) : cell);
+	lastkey = key;
+	lastcell = cell;
+	n++;
+	written++;
+    }
+
+    /**
+     * finish the last block, write the index and trailer, close out
+     */
+    public void close() throws IOException {
+	try {
+	    if (n > 0) {
+		block();
+	    }
+	    long index = pos;
+	    for (int i = 0; i < blocks; i++) {
+		if (zbuf.remaining() < INDEXENTRY) {
+		    flush();
+		}
+		zbuf.putInt(firstkeys[i]).putInt(counts[i]).putLong(offsets[i]);
+	    }
+	    if (zbuf.remaining() < 8) {
+		flush();
+	    }
+	    zbuf.putLong(index);
+	    flush();
+	} finally {
+	    def.end();
+	    out.close();
+	}
+    }
+
+    /** deflate the pending records as one block */
+    private void block() throws IOException {
+	if (blocks == firstkeys.length) {
+	    firstkeys = Arrays.copyOf(firstkeys,blocks*2);
+	    counts = Arrays.copyOf(counts,blocks*2);
+	    offsets = Arrays.copyOf(offsets,blocks*2);
+	}
+	firstkeys[blocks] = firstkey;
+	counts[blocks] = n;
+	offsets[blocks] = pos;
+	blocks++;
+
+	def.reset();
+	def.setInput(raw,0,rawlen);
+	def.finish();
+	while (!def.finished()) {
+	    int z = def.deflate(zbuf.array(),zbuf.position(),zbuf.remaining());
+	    zbuf.position(zbuf.position()+z);
+	    pos += z;
+	    if (!zbuf.hasRemaining()) {
+		flush();
+	    }
+	}
+	n = 0;
+	rawlen = 0;
+    }
+
+    private void flush() throws IOException {
+	zbuf.flip();
+	while (zbuf.hasRemaining()) {
+	    out.write(zbuf);
+	}
+	zbuf.clear();
+    }
+
+    private void varint(int v) {
+	while ((v & ~0x7f) != 0) {
+	    raw[rawlen++] = (byte)((v & 0x7f) | 0x80);
+	    v >>>= 7;
+	}
+	raw[rawlen++] = (byte)v;
+    }
+
+    static int zigzag(int v) {
+	return (v << 1) ^ (v >> 31);
+    }
+
+    static int unzigzag(int v) {
+	return (v >>> 1) ^ -(v & 1);
+    }
+}
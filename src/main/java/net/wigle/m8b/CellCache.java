@@ -0,0 +1,129 @@
+package net.wigle.m8b;
+
+import java.util.Arrays;
+import net.wigle.m8b.geodesy.utm;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * lat/lon to cell id memo for ingest, keyed on 1/1024 degree boxes (~110m a side).
+ *
+ * a point in a box that isn't cached yet is projected exactly. the grid is conformal,
+ * so easting and northing can't move more than scale times the ground distance, and
+ * when the point is farther inside its 1km square than the rest of its box can reach,
+ * every point of the box is in that square and the box is remembered. points near a
+ * square's edge are left uncached, and boxes whose top or right edge is a band or zone
+ * boundary (where rounding can tip a point over) are never looked at, so the answer is
+ * always the exact one.
+ *
+ * direct mapped, a new box simply replaces whatever shared its slot. one per thread.
+ */
+final class CellCache {
+
+    /** boxes per degree */
+    static final int Q = 1024;
+
+    /** most a degree of lat (111.7km) or lon (111.3km) covers on the ground, in m */
+    private static final double DEGREE = 111.7e3;
+
+    /** scale factor bound, under 1.002 in any zone (Norway's 32V is the widest), plus slack */
+    private static final double SCALE = 1.003;
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final long[] boxes;
+    private final int[] cells;
+    private final int mask;
+    private final double[] en = new double[2];
+
+    /** lookups answered from the cache */
+    long hits;
+
+    /** lookups */
+    long lookups;
+
+    CellCache() {
+	this(1 << 17);
+    }
+
+    /** slots is a power of 2 */
+    CellCache(int slots) {
+	boxes = new long[slots];
+	Arrays.fill(boxes,EMPTY);
+	cells = new int[slots];
+	mask = slots - 1;
+    }
+
+    /**
+     * cell id of lat/lon (lat inside the UTM limits), or -1 when it has to be worked out
+     * the long way (utm.toBytes)
+     */
+    int cell(double lat, double lon) {
+	lookups++;
+	if (!(-180 <= lon && lon < 180)) {
+	    return -1;
+	}
+	long fl = (long)Math.floor(lat*Q);
+	long fo = (long)Math.floor(lon*Q);
+	if ((fo+1) % Q == 0 || (fl+1) % (8*Q) == 0 || fl+1 == 84*Q) {
+	    return -1;
+	}
+	long box = (fl << 32) | (fo & 0xffffffffL);
+	int i = mix(box) & mask;
+	if (boxes[i] == box) {
+	    hits++;
+	    return cells[i];
+	}
+
+	int c = utm.toCell(lat,lon,en);
+	// the farthest the box reaches from this point, on the ground and then on the grid
+	double dlat = Math.max(lat - ((double)fl / Q), ((double)(fl+1) / Q) - lat);
+	double dlon = Math.max(lon - ((double)fo / Q), ((double)(fo+1) / Q) - lon);
+	double reach = (SCALE * DEGREE * (dlat + dlon)) + 1;
+	if (inside(en[0],reach) && inside(en[1],reach)) {
+	    boxes[i] = box;
+	    cells[i] = c;
+	}
+	return c;
+    }
+
+    /** at least reach from a 1km line */
+    private static boolean inside(double m, double reach) {
+	double r = m - (Math.floor(m / 1000) * 1000);
+	return r >= reach && r < 1000 - reach;
+    }
+
+    private static int mix(long box) {
+	long h = box * 0x9e3779b97f4a7c15L;
+	return (int)(h ^ (h >>> 32));
+    }
+}
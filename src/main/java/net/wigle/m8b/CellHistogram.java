@@ -0,0 +1,208 @@
+package net.wigle.m8b;
+
+import java.util.Arrays;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * cell id to hit count, for ranking the coords of a query.
+ *
+ * open addressing (linear probing) over int arrays, so adding a hit allocates nothing.
+ * cell ids are never negative, so -1 marks an empty slot. the slots that were used are
+ * remembered, clear() only resets those, so one histogram can be reused query after query
+ * however big it once grew.
+ */
+final class CellHistogram {
+
+    private static final int EMPTY = -1;
+
+    private int[] cells;
+    private int[] counts;
+    /** slots in use, in insertion order */
+    private int[] used;
+    private int size;
+    private int mask;
+
+    CellHistogram() {
+	this(64);
+    }
+
+    CellHistogram(int expected) {
+	int cap = 16;
+	while (cap < expected * 2) {
+	    cap <<= 1;
+	}
+	alloc(cap);
+    }
+
+    private void alloc(int cap) {
+	cells = new int[cap];
+	Arrays.fill(cells,EMPTY);
+	counts = new int[cap];
+	used = new int[cap / 2];
+	mask = cap - 1;
+	size = 0;
+    }
+
+    /** one more hit on cell */
+    void add(int cell) {
+	add(cell,1);
+    }
+
+    /** n more hits on cell */
+    void add(int cell, int n) {
+	int i = slot(cell);
+	if (cells[i] == EMPTY) {
+	    if (size == used.length) {
+		grow();
+		i = slot(cell);
+	    }
+	    cells[i] = cell;
+	    used[size++] = i;
+	}
+	counts[i] += n;
+    }
+
+    /** hits on cell, 0 if none */
+    int get(int cell) {
+	int i = slot(cell);
+	return cells[i] == EMPTY ? 0 : counts[i];
+    }
+
+    /** number of distinct cells */
+    int size() {
+	return size;
+    }
+
+    /** forget every cell, keeping the tables */
+    void clear() {
+	for (int j = 0; j < size; j++) {
+	    int i = used[j];
+	    cells[i] = EMPTY;
+	    counts[i] = 0;
+	}
+	size = 0;
+    }
+
+    /**
+     * the k most hit cells (all of them when k &lt; 0 or k &gt;= size), most hits first and
+     * ties in cell order. cells go in out[0], their counts in out[1].
+     */
+    int[][] top(int k) {
+	if (k < 0 || k > size) {
+	    k = size;
+	}
+	long[] best = new long[k];
+	if (k == size) {
+	    for (int j = 0; j < size; j++) {
+		best[j] = score(used[j]);
+	    }
+	    Arrays.sort(best);
+	} else if (k > 0) {
+	    // min heap of the k best seen so far, its root is the one to beat
+	    for (int j = 0; j < k; j++) {
+		best[j] = score(used[j]);
+	    }
+	    for (int j = (k >>> 1) - 1; j >= 0; j--) {
+		down(best,j,k);
+	    }
+	    for (int j = k; j < size; j++) {
+		long s = score(used[j]);
+		if (s > best[0]) {
+		    best[0] = s;
+		    down(best,0,k);
+		}
+	    }
+	    Arrays.sort(best);
+	}
+	int[][] out = new int[2][k];
+	for (int j = 0; j < k; j++) {
+	    long s = best[k-1-j];
+	    out[0][j] = Integer.MAX_VALUE - (int)s;
+	    out[1][j] = (int)(s >>> 32);
+	}
+	return out;
+    }
+
+    /** more hits, then lower cells, sort higher */
+    private long score(int i) {
+	return ((long)counts[i] << 32) | (Integer.MAX_VALUE - cells[i]);
+    }
+
+    private static void down(long[] h, int i, int n) {
+	long v = h[i];
+	while (true) {
+	    int c = (i << 1) + 1;
+	    if (c >= n) {
+		break;
+	    }
+	    if (c + 1 < n && h[c+1] < h[c]) {
+		c++;
+	    }
+	    if (h[c] >= v) {
+		break;
+	    }
+	    h[i] = h[c];
+	    i = c;
+	}
+	h[i] = v;
+    }
+
+    private int slot(int cell) {
+	int i = mix(cell) & mask;
+	while (cells[i] != EMPTY && cells[i] != cell) {
+	    i = (i + 1) & mask;
+	}
+	return i;
+    }
+
+    /** neighbouring cells differ in the low digits, spread them over the table */
+    private static int mix(int h) {
+	h *= 0x9e3779b9;
+	return h ^ (h >>> 16);
+    }
+
+    private void grow() {
+	int[] oc = cells;
+	int[] on = counts;
+	int[] ou = used;
+	int n = size;
+	alloc(oc.length << 1);
+	for (int j = 0; j < n; j++) {
+	    int o = ou[j];
+	    int i = slot(oc[o]);
+	    cells[i] = oc[o];
+	    counts[i] = on[o];
+	    used[size++] = i;
+	}
+    }
+}
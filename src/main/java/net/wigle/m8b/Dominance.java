@@ -0,0 +1,347 @@
+package net.wigle.m8b;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * the dominates relation between coords, over compressed sparse row adjacency.
+ *
+ * coord c2 dominates c1 when every record at c1 has a key that is also seen at c2.
+ * walking c1's keys out to all of their coords and counting the visits per coord,
+ * c2 dominates c1 when its count reaches c1's record count. coords and keys are
+ * dense indexes, their records are int ranges of two flat arrays, and a walk only
+ * clears the histogram entries it touched.
+ */
+final class Dominance {
+
+    /** coords with fewer records than this aren't worth a walk for score2 */
+    static final int MINRECORDS = 5;
+
+    final int coords;
+    final int keys;
+    /** key of every record at coord c is in coordKeys[coordStart[c]..coordStart[c+1]), in record order */
+    final int[] coordStart;
+    final int[] coordKeys;
+    /** coord of every record of key k is in keyCoords[keyStart[k]..keyStart[k+1]), in record order */
+    final int[] keyStart;
+    final int[] keyCoords;
+
+    /**
+     * adjacency of n records, record i is key recKey[i] at coord recCoord[i]
+     */
+    Dominance(int[] recKey, int[] recCoord, int n, int keys, int coords) {
+	this.keys = keys;
+	this.coords = coords;
+	coordStart = starts(recCoord,n,coords);
+	keyStart = starts(recKey,n,keys);
+	coordKeys = new int[n];
+	keyCoords = new int[n];
+	int[] cfill = Arrays.copyOf(coordStart,coords);
+	int[] kfill = Arrays.copyOf(keyStart,keys);
+	for (int i = 0; i < n; i++) {
+	    coordKeys[cfill[recCoord[i]]++] = recKey[i];
+	    keyCoords[kfill[recKey[i]]++] = recCoord[i];
+	}
+    }
+
+    /** row offsets for ids[0..n) in [0,rows), with the total at the end */
+    private static int[] starts(int[] ids, int n, int rows) {
+	int[] start = new int[rows+1];
+	for (int i = 0; i < n; i++) {
+	    start[ids[i]+1]++;
+	}
+	for (int r = 0; r < rows; r++) {
+	    start[r+1] += start[r];
+	}
+	return start;
+    }
+
+    /** records at coord c */
+    int records(int c) {
+	return coordStart[c+1] - coordStart[c];
+    }
+
+    /** most records of any key */
+    int maxKeyRecords() {
+	int max = 0;
+	for (int k = 0; k < keys; k++) {
+	    max = Math.max(max,keyStart[k+1]-keyStart[k]);
+	}
+	return max;
+    }
+
+    /** most records at any coord */
+    int maxCoordRecords() {
+	int max = 0;
+	for (int c = 0; c < coords; c++) {
+	    max = Math.max(max,records(c));
+	}
+	return max;
+    }
+
+    /**
+     * histogram steps to walk coord c, the sum of its keys' fan-out (1 for a coord with fewer than min records)
+     */
+    long work(int c, int min) {
+	long w = 1;
+	if (records(c) >= min) {
+	    for (int r = coordStart[c]; r < coordStart[c+1]; r++) {
+		int k = coordKeys[r];
+		w += keyStart[k+1] - keyStart[k];
+	    }
+	}
+	return w;
+    }
+
+    /**
+     * one computation of the dominates relation over coords, walked in a given order on the
+     * common fork/join pool. the coords are split recursively into tasks of about equal work,
+     * so a stretch of dense metro coords gets cut up rather than left as a straggler.
+     * progress and timing can be read while it runs.
+     */
+    static final class Walk {
+
+	/** fewest steps worth a task of its own */
+	static final long MINGRAIN = 1 << 16;
+
+	final Dominance g;
+	final int[] order;
+	/** coords with fewer records aren't walked */
+	final int min;
+	/** work of order[0..i) */
+	final long[] prefix;
+	final long grain;
+	final int threads;
+
+	/** histograms are coords sized, one per pool thread, all zero between walks */
+	private final ThreadLocal<int[]> hist;
+
+	final LongAdder steps = new LongAdder();
+	final LongAdder walked = new LongAdder();
+	final LongAdder tasks = new LongAdder();
+	final LongAdder busy = new LongAdder();
+	final AtomicLong slowest = new AtomicLong();
+	long started;
+	long finished;
+
+	Walk(Dominance g, int[] order, int min) {
+	    this.g = g;
+	    this.order = order;
+	    this.min = min;
+	    prefix = new long[order.length+1];
+	    for (int i = 0; i < order.length; i++) {
+		prefix[i+1] = prefix[i] + g.work(order[i],min);
+	    }
+	    threads = ForkJoinPool.getCommonPoolParallelism();
+	    // a handful of tasks per thread to steal
+	    grain = Math.max(MINGRAIN,prefix[order.length] / (threads * 16L));
+	    hist = ThreadLocal.withInitial(()->new int[g.coords]);
+	}
+
+	/**
+	 * the (dominating, dominated) pairs, in the order a single walk of order front to back
+	 * would find them. prints progress every report ms while it runs.
+	 */
+	int[] run(long report) {
+	    started = System.nanoTime();
+	    ForkJoinTask<List<int[]>> task = ForkJoinPool.commonPool().submit(new Dominator(this,0,order.length));
+	    List<int[]> parts;
+	    while (true) {
+		try {
+		    parts = task.get(report,TimeUnit.MILLISECONDS);
+		    break;
+		} catch (TimeoutException te) {
+		    System.out.println(progress());
+		} catch (InterruptedException ie) {
+		    task.cancel(true);
+		    throw new IllegalStateException(ie);
+		} catch (ExecutionException ee) {
+		    Throwable t = ee.getCause();
+		    if (t instanceof RuntimeException) {
+			throw (RuntimeException)t;
+		    }
+		    if (t instanceof Error) {
+			throw (Error)t;
+		    }
+		    throw new IllegalStateException(t);
+		}
+	    }
+	    finished = System.nanoTime();
+
+	    int np = 0;
+	    for (int[] p : parts) {
+		np += p.length;
+	    }
+	    int[] pairs = new int[np];
+	    np = 0;
+	    for (int[] p : parts) {
+		System.arraycopy(p,0,pairs,np,p.length);
+		np += p.length;
+	    }
+	    return pairs;
+	}
+
+	/** work of order[from..to) */
+	long work(int from, int to) {
+	    return prefix[to] - prefix[from];
+	}
+
+	/** where to cut order[from..to) in two halves of about the same work, from &lt; cut &lt; to */
+	int split(int from, int to) {
+	    long half = prefix[from] + (work(from,to) / 2);
+	    int lo = from + 1;
+	    int hi = to - 1;
+	    while (lo < hi) {
+		int mid = (lo + hi) >>> 1;
+		if (prefix[mid] < half) {
+		    lo = mid + 1;
+		} else {
+		    hi = mid;
+		}
+	    }
+	    return lo;
+	}
+
+	/** how far along it is */
+	String progress() {
+	    long total = prefix[order.length];
+	    long done = steps.sum() + walked.sum();
+	    return String.format("dominance %.1f%% %d of %d coords, %d tasks done, %.1fs",
+				 total == 0 ? 100.0 : (100.0*done)/total, walked.sum(), order.length,
+				 tasks.sum(), started == 0 ? 0.0 : (System.nanoTime()-started)/1e9);
+	}
+
+	/** how it went */
+	@Override
+	public String toString() {
+	    return String.format("dominance walked %d coords, %d steps in %d tasks on %d threads, %.1fs (%.1fs busy, slowest task %.3fs)",
+				 walked.sum(), steps.sum(), tasks.sum(), threads, (finished-started)/1e9,
+				 busy.sum()/1e9, slowest.get()/1e9);
+	}
+    }
+
+    /**
+     * worker for concurrent computation of the dominates relation, over the coords
+     * order[from..to). splits itself while there's more than a grain of work, otherwise
+     * walks. the result is (dominating, dominated) pairs in the order they were found,
+     * in parts that go left to right.
+     */
+    static final class Dominator extends RecursiveTask<List<int[]>> {
+
+	final Walk w;
+	final int from;
+	final int to;
+
+	Dominator(Walk w, int from, int to) {
+	    this.w = w;
+	    this.from = from;
+	    this.to = to;
+	}
+
+	@Override
+	protected List<int[]> compute() {
+	    if (to - from > 1 && w.work(from,to) > w.grain) {
+		int cut = w.split(from,to);
+		Dominator left = new Dominator(w,from,cut);
+		left.fork();
+		List<int[]> right = new Dominator(w,cut,to).compute();
+		List<int[]> parts = left.join();
+		parts.addAll(right);
+		return parts;
+	    }
+	    List<int[]> parts = new ArrayList<>();
+	    parts.add(walk());
+	    return parts;
+	}
+
+	private int[] walk() {
+	    long t0 = System.nanoTime();
+	    Dominance g = w.g;
+	    int[] hist = w.hist.get();
+	    int[] touched = new int[64];
+	    int[] pairs = new int[16];
+	    int np = 0;
+	    long steps = 0;
+	    for (int i = from; i < to; i++) {
+		int c1 = w.order[i];
+		int n = g.records(c1);
+		if (n < w.min) {
+		    continue;
+		}
+
+		int nt = 0;
+		for (int r = g.coordStart[c1]; r < g.coordStart[c1+1]; r++) {
+		    int h1 = g.coordKeys[r];
+		    steps += g.keyStart[h1+1] - g.keyStart[h1];
+		    for (int s = g.keyStart[h1]; s < g.keyStart[h1+1]; s++) {
+			int c2 = g.keyCoords[s];
+			if (hist[c2]++ == 0) {
+			    if (nt == touched.length) {
+				touched = Arrays.copyOf(touched,nt*2);
+			    }
+			    touched[nt++] = c2;
+			}
+			if (hist[c2] == n && c2 != c1) { // c2 dominates c1
+			    if (np == pairs.length) {
+				pairs = Arrays.copyOf(pairs,np*2);
+			    }
+			    pairs[np++] = c2;
+			    pairs[np++] = c1;
+			}
+		    }
+		}
+		// histogram reset, just what this walk touched
+		for (int t = 0; t < nt; t++) {
+		    hist[touched[t]] = 0;
+		}
+	    }
+	    long took = System.nanoTime() - t0;
+	    w.steps.add(steps);
+	    w.walked.add(to - from);
+	    w.tasks.increment();
+	    w.busy.add(took);
+	    w.slowest.accumulateAndGet(took,Math::max);
+	    return Arrays.copyOf(pairs,np);
+	}
+    }
+}
@@ -0,0 +1,223 @@
+package net.wigle.m8b;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import net.wigle.m8b.geodesy.mgrs;
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * an uncompressed (version 2 or 3) m8b file, binary-searched inplace.
+ *
+ * the body is mapped (in segments, since a single mapping tops out at 2GB) and
+ * never copied onto the heap. a lookup touches O(log n) pages to find the start
+ * of a key run, then walks the run. a gzipped file is inflated into heap segments
+ * instead, and searched the same way.
+ *
+ * all reads are absolute, so a reader can be shared between threads.
+ */
+final class FlatReader extends M8bReader {
+
+    /** bytes per heap segment of an inflated file */
+    private static final int HEAPSEGMENT = 64 << 20;
+
+    private final Closeable ch;
+    private final ByteBuffer[] segs;
+
+    final long records;
+
+    /** records per segment */
+    private final long segrecords;
+    private final int recordsize;
+
+    /**
+     * generate() used to write keys in (signed) TreeMap order, reduce()/unf() in unsigned order.
+     * figured out from the first and last keys at open.
+     */
+    private final boolean signed;
+
+    private FlatReader(Closeable ch, String[] s, ByteBuffer[] segs, long segrecords, long bodysize) {
+	super(s);
+	this.ch = ch;
+	this.segs = segs;
+	this.segrecords = segrecords;
+
+	recordsize = idsize + coordsize;
+	// trust the body over the header; unf() writes a placeholder count until it is done.
+	records = bodysize / recordsize;
+
+	for (ByteBuffer seg : segs) {
+	    seg.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	signed = records > 1 && Integer.compareUnsigned(keyAt(0),keyAt(records-1)) > 0;
+    }
+
+    /**
+     * map the body of ch, from bodyoffset on
+     */
+    static FlatReader mapped(FileChannel ch, String[] s, int bodyoffset) throws IOException {
+	int recordsize = Records.size(Integer.parseInt(s[1],16));
+
+	long bodysize = ch.size() - bodyoffset;
+	long segrecords = Integer.MAX_VALUE / recordsize;
+	long segbytes = segrecords * recordsize;
+	int nsegs = (int)((bodysize + segbytes - 1) / segbytes);
+	ByteBuffer[] segs = new ByteBuffer[nsegs];
+	for (int i = 0; i < nsegs; i++) {
+	    long pos = bodyoffset + (i * segbytes);
+	    long len = Math.min(segbytes, (bodyoffset + bodysize) - pos);
+	    segs[i] = ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+	}
+	return new FlatReader(ch,s,segs,segrecords,bodysize);
+    }
+
+    /**
+     * read the rest of the body from in onto the heap, head is what came after the header
+     */
+    static FlatReader inflated(InputStream in, String[] s, byte[] head) throws IOException {
+	int recordsize = Records.size(Integer.parseInt(s[1],16));
+
+	long segrecords = HEAPSEGMENT / recordsize;
+	int segbytes = (int)(segrecords * recordsize);
+	List<ByteBuffer> segs = new ArrayList<>();
+	long bodysize = 0;
+
+	byte[] seg = new byte[segbytes];
+	int len = head.length;
+	System.arraycopy(head,0,seg,0,len);
+	while (true) {
+	    int r;
+	    while (len < segbytes && (r = in.read(seg,len,segbytes-len)) > 0) {
+		len += r;
+	    }
+	    if (len > 0) {
+		segs.add(ByteBuffer.wrap(len == segbytes ? seg : Arrays.copyOf(seg,len)));
+		bodysize += len;
+	    }
+	    if (len < segbytes) {
+		break;
+	    }
+	    seg = new byte[segbytes];
+	    len = 0;
+	}
+	return new FlatReader(null,s,segs.toArray(new ByteBuffer[segs.size()]),segrecords,bodysize);
+    }
+
+    public long size() {
+	return records;
+    }
+
+    /** the key of record i */
+    int keyAt(long i) {
+	ByteBuffer seg = segs[(int)(i / segrecords)];
+	return seg.getInt((int)(i % segrecords) * recordsize);
+    }
+
+    /** copy the coordsize coordinate bytes of record i into dst */
+    void coordAt(long i, byte[] dst) {
+	ByteBuffer seg = segs[(int)(i / segrecords)];
+	int p = ((int)(i % segrecords) * recordsize) + idsize;
+	for (int j = 0; j < coordsize; j++) {
+	    dst[j] = seg.get(p+j);
+	}
+    }
+
+    /** the mgrs cell id of record i, tmp is 9 bytes of scratch for version 2 */
+    int cellAt(long i, byte[] tmp) {
+	if (version == 3) {
+	    ByteBuffer seg = segs[(int)(i / segrecords)];
+	    return seg.getInt(((int)(i % segrecords) * recordsize) + idsize);
+	}
+	coordAt(i,tmp);
+	return mgrs.cellFromBytes(tmp,0);
+    }
+
+    /** the 9 byte mgrs string of record i into dst, whatever the version */
+    void mgrsAt(long i, byte[] dst) {
+	if (version == 3) {
+	    mgrs.cellToBytes(cellAt(i,dst),dst,0);
+	} else {
+	    coordAt(i,dst);
+	}
+    }
+
+    /**
+     * index of the first record with a key &gt;= key, size() if there is none.
+     * walk forward from here while keyAt(i) == key to get the full run.
+     */
+    long lowerBound(int key) {
+	long lo = 0;
+	long hi = records;
+	while (lo < hi) {
+	    long mid = (lo + hi) >>> 1;
+	    int k = keyAt(mid);
+	    int c = signed ? Integer.compare(k,key) : Integer.compareUnsigned(k,key);
+	    if (c < 0) {
+		lo = mid + 1;
+	    } else {
+		hi = mid;
+	    }
+	}
+	return lo;
+    }
+
+    int find(int key, IntConsumer cells) {
+	byte[] tmp = new byte[9];
+	int n = 0;
+	for (long i = lowerBound(key); i < records && keyAt(i) == key; i++) {
+	    cells.accept(cellAt(i,tmp));
+	    n++;
+	}
+	return n;
+    }
+
+    public void forEach(RecordSink sink) throws IOException {
+	byte[] tmp = new byte[9];
+	for (long i = 0; i < records; i++) {
+	    sink.accept(keyAt(i),cellAt(i,tmp));
+	}
+    }
+
+    public void close() throws IOException {
+	if (ch != null) {
+	    ch.close();
+	}
+    }
+}
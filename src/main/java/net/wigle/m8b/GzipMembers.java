@@ -0,0 +1,171 @@
+package net.wigle.m8b;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * writes an m8b as concatenated gzip members, compressed on several threads.
+ *
+ * the header is a member of its own, then the reduced partitions are cut into chunks of
+ * whole records and each chunk is deflated into its own member, as many at once as there
+ * are threads. members are written strictly in order, so the output inflates (with
+ * GZIPInputStream, or gzip -d) to exactly what combine writes uncompressed.
+ */
+final class GzipMembers {
+
+    /** source bytes per member, whole 13 byte records */
+    static final int CHUNK = (8 << 20) / Records.RECORDSIZE * Records.RECORDSIZE;
+
+    /** members written, and bytes in and out */
+    int members;
+    long in;
+    long out;
+
+    private final int threads;
+
+    /** a deflated member and how many bytes it inflates to */
+    private static final class Member {
+	final int raw;
+	final byte[] gz;
+
+	Member(int raw, byte[] gz) {
+	    this.raw = raw;
+	    this.gz = gz;
+	}
+    }
+
+    GzipMembers(int threads) {
+	this.threads = Math.max(1,threads);
+    }
+
+    /**
+     * header then the version 2 records of parts, as version records, to dst
+     */
+    void write(byte[] header, Path[] parts, int version, WritableByteChannel dst) throws Exception {
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	ArrayDeque<Future<Member>> inflight = new ArrayDeque<>();
+	try {
+	    emit(deflate(header,header.length),dst);
+	    for (Path part : parts) {
+		long size = Files.size(part);
+		for (long off = 0; off < size; off += CHUNK) {
+		    final long o = off;
+		    final int len = (int)Math.min(CHUNK,size-off);
+		    inflight.add(pool.submit(() -> chunk(part,o,len,version)));
+		    while (inflight.size() >= threads*2) {
+			emit(get(inflight.poll()),dst);
+		    }
+		}
+	    }
+	    while (!inflight.isEmpty()) {
+		emit(get(inflight.poll()),dst);
+	    }
+	} finally {
+	    pool.shutdownNow();
+	}
+    }
+
+    /**
+     * part[off..off+len) as one member, repacked to version first if need be
+     */
+    private static Member chunk(Path part, long off, int len, int version) throws IOException {
+	ByteBuffer bb = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+	try (FileChannel ch = FileChannel.open(part,StandardOpenOption.READ)) {
+	    while (bb.hasRemaining() && ch.read(bb,off+bb.position()) > 0) {
+		// fill
+	    }
+	}
+	bb.flip();
+	if (version == 2) {
+	    return deflate(bb.array(),bb.limit());
+	}
+	// reduce files are version 2 records
+	ByteBuffer ob = ByteBuffer.allocate((len / Records.RECORDSIZE) * Records.size(version)).order(ByteOrder.LITTLE_ENDIAN);
+	byte[] mstr = new byte[9];
+	while (bb.remaining() >= Records.RECORDSIZE) {
+	    Records.put(ob,Records.get(bb,mstr),version,mstr);
+	}
+	return deflate(ob.array(),ob.position());
+    }
+
+    /** b[0..n) as a gzip member */
+    private static Member deflate(byte[] b, int n) throws IOException {
+	ByteArrayOutputStream bos = new ByteArrayOutputStream(n / 3 + 64);
+	try (GZIPOutputStream gz = new GZIPOutputStream(bos,1 << 16)) {
+	    gz.write(b,0,n);
+	}
+	return new Member(n,bos.toByteArray());
+    }
+
+    private void emit(Member m, WritableByteChannel dst) throws IOException {
+	ByteBuffer bb = ByteBuffer.wrap(m.gz);
+	while (bb.hasRemaining()) {
+	    dst.write(bb);
+	}
+	in += m.raw;
+	out += m.gz.length;
+	members++;
+    }
+
+    private static Member get(Future<Member> f) throws Exception {
+	try {
+	    return f.get();
+	} catch (ExecutionException ee) {
+	    Throwable t = ee.getCause();
+	    if (t instanceof Exception) {
+		throw (Exception)t;
+	    }
+	    throw ee;
+	}
+    }
+
+    @Override
+    public String toString() {
+	return String.format("gzipped %d bytes to %d (%.1f%%) in %d members on %d threads",
+			     in,out,in == 0 ? 0.0 : (100.0*out)/in,members,threads);
+    }
+}
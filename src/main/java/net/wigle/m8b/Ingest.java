@@ -0,0 +1,439 @@
+package net.wigle.m8b;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import net.wigle.m8b.siphash.SipKey;
+import net.wigle.m8b.geodesy.utm;
+import net.wigle.m8b.geodesy.mgrs;
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * chunked reader for mac|lat|lon observation files.
+ *
+ * the input is cut into newline aligned byte ranges. each range is parsed, projected
+ * and hashed on its own, and the resulting records are handed to the sink strictly in
+ * input order, so the output of anything fed by a sink is the same no matter how many
+ * threads did the parsing.
+ *
+ * with threads &gt; 1 it is a pipeline: a reader thread cuts the ranges and hands them to
+ * threads workers, and the calling thread takes the parsed ranges off a bounded queue, in
+ * order, and feeds the sink. a full queue holds the reader up, so at most threads*2 ranges
+ * are in memory at once. a Meter of each stage is printed at the end.
+ */
+final class Ingest {
+
+    /** bytes per range handed to a worker */
+    static final int CHUNK = 4 << 20;
+
+    /** mgrs string size */
+    static final int MGRSIZE = 9;
+
+    /** receives parsed records, in input order, on the calling thread */
+    interface Sink {
+	/** coords[off..off+9) is the mgrs string for key */
+	void accept(int key, byte[] coords, int off) throws IOException;
+    }
+
+    /** a parsed range */
+    static final class Chunk {
+	int count;
+	int nonutm;
+	int[] keys;
+	byte[] coords;
+	/** cell cache hits and lookups */
+	long hits;
+	long lookups;
+	/** nanos spent parsing and hashing, and projecting */
+	long parseNs;
+	long geoNs;
+    }
+
+    /** a newline aligned range buf[start..end) of the input */
+    private static final class Range {
+	final byte[] buf;
+	final int start;
+	final int end;
+
+	Range(byte[] buf, int start, int end) {
+	    this.buf = buf;
+	    this.start = start;
+	    this.end = end;
+	}
+    }
+
+    /** lat/lon memo, per parsing thread */
+    private static final ThreadLocal<CellCache> CACHE = ThreadLocal.withInitial(CellCache::new);
+
+    /** queued by the reader after the last range */
+    private static final Future<Chunk> END = CompletableFuture.completedFuture(null);
+
+    private Ingest() {}
+
+    /**
+     * read mac|lat|lon per line text file fromFile (skipping first header line, .gz is inflated)
+     * hash the macs down to slicebits, and feed every in bounds record to sink.
+     * returns the number of out of bounds records skipped.
+     */
+    static int run(String fromFile, boolean tabs, int slicebits, int threads, Sink sink) throws Exception {
+	final char sep = tabs ? '\t' : '|';
+
+	ReadableByteChannel in = Files.newByteChannel(new File(fromFile).toPath(), EnumSet.of(StandardOpenOption.READ));
+	if (fromFile.endsWith(".gz") || fromFile.endsWith(".GZ")) {// there's got to be a better way!
+	    InputStream is = Channels.newInputStream(in);
+	    GZIPInputStream gis = new GZIPInputStream(is);
+	    in = Channels.newChannel(gis);
+	}
+
+	Meter m = new Meter(threads);
+	try {
+	    Ranges ranges = new Ranges(in);
+	    if (threads > 1) {
+		pipeline(ranges,sep,slicebits,threads,sink,m);
+	    } else {
+		for (Range r; (r = ranges.next(m)) != null; ) {
+		    drain(parse(r.buf,r.start,r.end,sep,slicebits),sink,m);
+		}
+	    }
+	} finally {
+	    in.close();
+	}
+	System.out.printf("cell cache hit %d of %d points (%.1f%%)\n",m.hits,m.lookups,m.lookups == 0 ? 0.0 : (100.0*m.hits)/m.lookups);
+	System.out.println(m);
+	return (int)m.nonutm;
+    }
+
+    /**
+     * reader thread to workers to the calling thread, through a queue of threads*2 ranges
+     */
+    private static void pipeline(Ranges ranges, char sep, int slicebits, int threads, Sink sink, Meter m) throws Exception {
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	BlockingQueue<Future<Chunk>> queue = new ArrayBlockingQueue<>(threads*2);
+	m.capacity = threads*2;
+
+	Thread reader = new Thread(() -> {
+	    try {
+		try {
+		    for (Range r; (r = ranges.next(m)) != null; ) {
+			final Range fr = r;
+			Future<Chunk> f = pool.submit(() -> parse(fr.buf,fr.start,fr.end,sep,slicebits));
+			long t = System.nanoTime();
+			queue.put(f);
+			m.readBlockedNs += System.nanoTime() - t;
+		    }
+		    queue.put(END);
+		} catch (InterruptedException e) {
+		    throw e;
+		} catch (Throwable e) {
+		    CompletableFuture<Chunk> f = new CompletableFuture<>();
+		    f.completeExceptionally(e);
+		    queue.put(f);
+		}
+	    } catch (InterruptedException e) {
+		// the writer has given up
+	    }
+	},"ingest-reader");
+	reader.setDaemon(true);
+
+	boolean done = false;
+	reader.start();
+	try {
+	    while (true) {
+		m.depth(queue.size());
+		long t = System.nanoTime();
+		Future<Chunk> f = queue.take();
+		Chunk c = get(f);
+		m.writeWaitNs += System.nanoTime() - t;
+		if (c == null) {
+		    break;
+		}
+		drain(c,sink,m);
+	    }
+	    done = true;
+	} finally {
+	    if (!done) {
+		reader.interrupt();
+	    }
+	    pool.shutdownNow();
+	    reader.join();
+	}
+    }
+
+    private static Chunk get(Future<Chunk> f) throws Exception {
+	try {
+	    return f.get();
+	} catch (ExecutionException ee) {
+	    Throwable t = ee.getCause();
+	    if (t instanceof Exception) {
+		throw (Exception)t;
+	    }
+	    throw ee;
+	}
+    }
+
+    private static void drain(Chunk c, Sink sink, Meter m) throws IOException {
+	long t = System.nanoTime();
+	for (int i = 0; i < c.count; i++) {
+	    sink.accept(c.keys[i],c.coords,i*MGRSIZE);
+	}
+	m.writeNs += System.nanoTime() - t;
+	m.records += c.count;
+	m.nonutm += c.nonutm;
+	m.hits += c.hits;
+	m.lookups += c.lookups;
+	m.parseNs += c.parseNs;
+	m.geoNs += c.geoNs;
+    }
+
+    /**
+     * cuts the input into newline aligned ranges of about CHUNK bytes, the header line dropped
+     */
+    private static final class Ranges {
+	private final ReadableByteChannel in;
+	private byte[] carry = new byte[0];
+	private boolean header = true;
+	private boolean eof = false;
+
+	Ranges(ReadableByteChannel in) {
+	    this.in = in;
+	}
+
+	/** the next range, null after the last */
+	Range next(Meter m) throws IOException {
+	    if (eof) {
+		return null;
+	    }
+	    long t = System.nanoTime();
+	    ByteBuffer bb = ByteBuffer.allocate(CHUNK + carry.length);
+	    bb.put(carry);
+	    while (bb.hasRemaining()) {
+		if (in.read(bb) < 0) {
+		    eof = true;
+		    break;
+		}
+	    }
+	    final byte[] buf = bb.array();
+	    int len = bb.position();
+	    m.bytes += len - carry.length;
+
+	    // cut at the last newline, the tail goes to the next range
+	    int end = len;
+	    if (!eof) {
+		while (end > 0 && buf[end-1] != '\n') {
+		    end--;
+		}
+		if (end == 0) {
+		    throw new IOException("line longer than "+CHUNK+" bytes");
+		}
+	    }
+	    carry = Arrays.copyOfRange(buf,end,len);
+
+	    int start = 0;
+	    if (header) {
+		while (start < end && buf[start] != '\n') {
+		    start++;
+		}
+		start++;
+		header = false;
+	    }
+	    m.readNs += System.nanoTime() - t;
+	    return new Range(buf,start,end);
+	}
+    }
+
+    /**
+     * what each stage did and how long it took. the read figures belong to the reader, the
+     * rest are summed up by the thread feeding the sink.
+     */
+    static final class Meter {
+	final int workers;
+	/** queue capacity, 0 when not pipelined */
+	int capacity;
+
+	long bytes;
+	long readNs;
+	/** reader time spent waiting for room in the queue */
+	long readBlockedNs;
+	/** summed over the workers */
+	long parseNs;
+	long geoNs;
+	long records;
+	long nonutm;
+	long hits;
+	long lookups;
+	long writeNs;
+	/** sink thread time spent waiting for the next range to be parsed */
+	long writeWaitNs;
+	long depths;
+	long depthSum;
+	int depthMax;
+
+	Meter(int workers) {
+	    this.workers = workers;
+	}
+
+	/** note the queue depth seen */
+	void depth(int d) {
+	    depths++;
+	    depthSum += d;
+	    depthMax = Math.max(depthMax,d);
+	}
+
+	/** per second of ns */
+	private static double rate(long n, long ns) {
+	    return ns == 0 ? 0.0 : (n * 1e9) / ns;
+	}
+
+	@Override
+	public String toString() {
+	    long points = records + nonutm;
+	    StringBuilder sb = new StringBuilder();
+	    sb.append(String.format("ingest read %dMB in %.1fs (%.1fMB/s",bytes >> 20,readNs/1e9,rate(bytes,readNs)/(1 << 20)));
+	    if (capacity > 0) {
+		sb.append(String.format(", blocked %.1fs",readBlockedNs/1e9));
+	    }
+	    sb.append(String.format("), parsed %d lines in %.1fs (%.0f/s), projected in %.1fs (%.0f/s) on %d worker%s",
+				    points,parseNs/1e9,rate(points,parseNs),geoNs/1e9,rate(records,geoNs),workers,workers == 1 ? "" : "s"));
+	    sb.append(String.format(", wrote %d records in %.1fs (%.0f/s",records,writeNs/1e9,rate(records,writeNs)));
+	    if (capacity > 0) {
+		sb.append(String.format(", waited %.1fs), queue depth avg %.1f max %d of %d",
+					writeWaitNs/1e9,depths == 0 ? 0.0 : (double)depthSum/depths,depthMax,capacity));
+	    } else {
+		sb.append(")");
+	    }
+	    return sb.toString();
+	}
+    }
+
+    /**
+     * parse the lines of buf[start..end), then project the whole lot in one go
+     */
+    static Chunk parse(byte[] buf, int start, int end, char sep, int slicebits) {
+	long t0 = System.nanoTime();
+	// just zerokey it. we're not trying to avoid collisions.
+	SipKey sipkey = new SipKey(new byte[16]);
+	ObservationParser op = new ObservationParser(sep);
+
+	Chunk c = new Chunk();
+	int cap = Math.max(16,(end-start)/32);
+	c.keys = new int[cap];
+	double[] lats = new double[cap];
+	double[] lons = new double[cap];
+
+	int ls = start;
+	while (ls < end) {
+	    int le = ls;
+	    while (le < end && buf[le] != '\n') {
+		le++;
+	    }
+	    int next = le + 1;
+	    if (le > ls && buf[le-1] == '\r') {
+		le--;
+	    }
+	    if (le == ls) {
+		ls = next;
+		continue;
+	    }
+
+	    op.parse(buf,ls,le);
+	    ls = next;
+
+	    double lat = op.lat;
+	    double lon = op.lon;
+
+	    if (!(-80<=lat && lat<=84)) {
+		c.nonutm++;
+		continue;
+	    }
+
+	    int key = op.key(sipkey,slicebits);
+
+	    if (c.count == c.keys.length) {
+		c.keys = Arrays.copyOf(c.keys,c.count*2);
+		lats = Arrays.copyOf(lats,c.count*2);
+		lons = Arrays.copyOf(lons,c.count*2);
+	    }
+	    c.keys[c.count] = key;
+	    lats[c.count] = lat;
+	    lons[c.count] = lon;
+	    c.count++;
+	}
+
+	long t1 = System.nanoTime();
+	c.parseNs = t1 - t0;
+
+	// cached boxes straight to bytes, the rest in one go
+	c.coords = new byte[c.count*MGRSIZE];
+	CellCache cache = CACHE.get();
+	long h0 = cache.hits;
+	long l0 = cache.lookups;
+	int[] todo = new int[c.count];
+	int m = 0;
+	for (int i = 0; i < c.count; i++) {
+	    int cell = cache.cell(lats[i],lons[i]);
+	    if (cell < 0) {
+		todo[m] = i;
+		lats[m] = lats[i];
+		lons[m] = lons[i];
+		m++;
+		continue;
+	    }
+	    mgrs.cellToBytes(cell,c.coords,i*MGRSIZE);
+	}
+	if (m > 0) {
+	    byte[] rest = new byte[m*MGRSIZE];
+	    utm.toBytes(lats,lons,m,rest);
+	    for (int j = 0; j < m; j++) {
+		System.arraycopy(rest,j*MGRSIZE,c.coords,todo[j]*MGRSIZE,MGRSIZE);
+	    }
+	}
+	c.hits = cache.hits - h0;
+	c.lookups = cache.lookups - l0;
+	c.geoNs = System.nanoTime() - t1;
+	return c;
+    }
+}
@@ -0,0 +1,302 @@
+package net.wigle.m8b;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * bloom filter over the distinct keys of an m8b, kept next to it in a sidecar file.
+ *
+ * a key the filter says no to is certainly not in the m8b, so the body is never touched
+ * for it. a yes is wrong about as often as the false positive rate it was built for,
+ * which costs bits: about 4.8 per key at 10%, 9.6 at 1%, 14.4 at 0.1%.
+ *
+ * the sidecar of x.m8b (or x.m8b.gz) is x.m8b.filter, 10 header lines like an m8b's
+ * (MJGF, version, BLOOM, slicebits, records, keys, bits, hashes, m8b size, m8b crc,
+ * the numbers in hex) then the bits as LE longs. it is only used for an m8b with the
+ * same slicebits, record count and fingerprint as the one it was built from, anything
+ * else (a rebuilt m8b, an older sidecar) is ignored rather than trusted.
+ *
+ * the fingerprint is the m8b file's size and a crc of all of it, as stored. anything
+ * less lets a rebuilt m8b that differs where it wasn't looked pass for the old one, and a
+ * stale filter says no to keys that are there. so opening with a filter reads the m8b
+ * through once: it pays off over the many lookups of serve, batch or scan, not one query.
+ */
+final class KeyFilter {
+
+    static final String SUFFIX = ".filter";
+
+    private static final int VERSION = 3;
+
+    final int slicebits;
+    final long records;
+    final long keys;
+    /** bits in the filter, a multiple of 64 */
+    final long m;
+    /** hashes per key */
+    final int k;
+    private final long[] bits;
+
+    /** mightContain calls, and how many said no */
+    final LongAdder checks = new LongAdder();
+    final LongAdder rejects = new LongAdder();
+
+    private KeyFilter(int slicebits, long records, long keys, long m, int k) {
+	this.slicebits = slicebits;
+	this.records = records;
+	this.keys = keys;
+	this.m = m;
+	this.k = k;
+	bits = new long[(int)(m / 64)];
+    }
+
+    /**
+     * a filter for the keys of reader, sized for false positive rate fpp
+     */
+    static KeyFilter build(M8bReader reader, double fpp) throws IOException {
+	if (!(fpp > 0 && fpp < 1)) {
+	    throw new IllegalArgumentException("bad false positive rate:"+fpp);
+	}
+	// records are in key order, distinct keys are where the key changes
+	long[] keys = {0};
+	int[] last = {0};
+	reader.forEach((key,cell)->{
+	    if (keys[0] == 0 || key != last[0]) {
+		keys[0]++;
+		last[0] = key;
+	    }
+	});
+	long n = Math.max(1,keys[0]);
+	double ln2 = Math.log(2);
+	long m = (long)Math.ceil(-n * Math.log(fpp) / (ln2 * ln2));
+	m = Math.max(64,(m + 63) & ~63L);
+	if (m / 64 > Integer.MAX_VALUE - 8) {
+	    throw new IllegalArgumentException("filter too big: "+m+" bits");
+	}
+	int k = (int)Math.max(1,Math.min(30,Math.round(((double)m / n) * ln2)));
+
+	KeyFilter f = new KeyFilter(reader.slicebits(),reader.size(),keys[0],m,k);
+	reader.forEach((key,cell)->f.add(key));
+	return f;
+    }
+
+    private void add(int key) {
+	long h1 = mix(key & 0xffffffffL);
+	long h2 = mix(h1) | 1;
+	for (int i = 0; i < k; i++) {
+	    long b = ((h1 + (i * h2)) >>> 1) % m;
+	    bits[(int)(b >>> 6)] |= 1L << b;
+	}
+    }
+
+    /**
+     * false if key is certainly not in the m8b
+     */
+    boolean mightContain(int key) {
+	checks.increment();
+	long h1 = mix(key & 0xffffffffL);
+	long h2 = mix(h1) | 1;
+	for (int i = 0; i < k; i++) {
+	    long b = ((h1 + (i * h2)) >>> 1) % m;
+	    if ((bits[(int)(b >>> 6)] & (1L << b)) == 0) {
+		rejects.increment();
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /** the false positive rate we expect, from how full it is */
+    double expectedFpp() {
+	long set = 0;
+	for (long w : bits) {
+	    set += Long.bitCount(w);
+	}
+	return Math.pow((double)set / m,k);
+    }
+
+    /** murmur3's 64 bit finalizer */
+    private static long mix(long h) {
+	h ^= h >>> 33;
+	h *= 0xff51afd7ed558ccdL;
+	h ^= h >>> 33;
+	h *= 0xc4ceb9fe1a85ec53L;
+	h ^= h >>> 33;
+	return h;
+    }
+
+    /**
+     * the sidecar path for m8bFile
+     */
+    static Path sidecar(Path m8bFile) {
+	String name = m8bFile.getFileName().toString();
+	if (name.endsWith(".gz") || name.endsWith(".GZ")) {
+	    name = name.substring(0,name.length()-3);
+	}
+	return m8bFile.resolveSibling(name + SUFFIX);
+    }
+
+    /**
+     * write the filter to its sidecar path for m8bFile
+     */
+    void write(Path m8bFile) throws IOException {
+	Charset utf8 = Charset.forName("UTF-8");
+	long[] fp = fingerprint(m8bFile);
+	String header = String.format("MJGF\n%x\nBLOOM\n%x\n%x\n%x\n%x\n%x\n%x\n%x\n",VERSION,slicebits,records,keys,m,k,fp[0],fp[1]);
+	try (SeekableByteChannel out = Files.newByteChannel(sidecar(m8bFile), EnumSet.of(StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING,StandardOpenOption.WRITE))) {
+	    ByteBuffer bb = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+	    bb.put(header.getBytes(utf8));
+	    for (long w : bits) {
+		if (bb.remaining() < 8) {
+		    flush(bb,out);
+		}
+		bb.putLong(w);
+	    }
+	    flush(bb,out);
+	}
+    }
+
+    /**
+     * m8bFile's size and the crc of all its bytes
+     */
+    static long[] fingerprint(Path m8bFile) throws IOException {
+	try (FileChannel in = FileChannel.open(m8bFile, StandardOpenOption.READ)) {
+	    CRC32 crc = new CRC32();
+	    ByteBuffer bb = ByteBuffer.allocateDirect(1 << 20);
+	    long size = 0;
+	    int r;
+	    while ((r = in.read(bb)) >= 0) {
+		size += r;
+		bb.flip();
+		crc.update(bb);
+		bb.clear();
+	    }
+	    return new long[]{size,crc.getValue()};
+	}
+    }
+
+    private static void flush(ByteBuffer bb, SeekableByteChannel out) throws IOException {
+	bb.flip();
+	while (bb.hasRemaining()) {
+	    out.write(bb);
+	}
+	bb.clear();
+    }
+
+    /**
+     * the sidecar filter of m8bFile if there is one built for it, with this slicebits and record count, else null
+     */
+    static KeyFilter open(Path m8bFile, int slicebits, long records) throws IOException {
+	Path p = sidecar(m8bFile);
+	if (!Files.isRegularFile(p)) {
+	    return null;
+	}
+	try (SeekableByteChannel in = Files.newByteChannel(p, EnumSet.of(StandardOpenOption.READ))) {
+	    ByteBuffer bb = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+	    while (bb.hasRemaining() && in.read(bb) > 0) {
+		// fill
+	    }
+	    bb.flip();
+	    byte[] tmp = new byte[Math.min(256,bb.remaining())];
+	    bb.get(tmp);
+	    // where each header line ends, the version says how many there are
+	    int[] ends = new int[10];
+	    int lines = 0;
+	    for (int i = 0; i < tmp.length && lines < ends.length; i++) {
+		if (tmp[i] == (byte)'\n') {
+		    ends[lines++] = i;
+		}
+	    }
+	    if (lines < 2 || !"MJGF".equals(new String(tmp,0,ends[0],Charset.forName("UTF-8")))) {
+		throw new IOException("malformed filter header "+p);
+	    }
+	    if (Integer.parseInt(new String(tmp,ends[0]+1,ends[1]-ends[0]-1,Charset.forName("UTF-8")),16) != VERSION) {
+		// older sidecars have no fingerprint or only a sampled one, nothing says they go with this m8b
+		return null;
+	    }
+	    if (lines < ends.length) {
+		throw new IOException("malformed filter header "+p);
+	    }
+	    int end = ends[ends.length-1];
+	    String[] s = new String(tmp,0,end,Charset.forName("UTF-8")).split("\n");
+	    if (!"BLOOM".equals(s[2])) {
+		throw new IOException("unsupported filter "+p);
+	    }
+	    if (Integer.parseInt(s[3],16) != slicebits || Long.parseLong(s[4],16) != records) {
+		// built for some other m8b, useless
+		return null;
+	    }
+	    if (Long.parseLong(s[8],16) != Files.size(m8bFile)) {
+		// a size that differs needs no crc to tell
+		return null;
+	    }
+	    long[] fp = fingerprint(m8bFile);
+	    if (Long.parseLong(s[8],16) != fp[0] || Long.parseLong(s[9],16) != fp[1]) {
+		// same shape but not the m8b it was built from, a stale filter would say no to keys that are there
+		return null;
+	    }
+	    KeyFilter f = new KeyFilter(slicebits,records,Long.parseLong(s[5],16),Long.parseLong(s[6],16),Integer.parseInt(s[7],16));
+	    if (Files.size(p) != (end + 1) + (f.m / 8)) {
+		throw new IOException("truncated filter "+p);
+	    }
+	    bb.position(end + 1);
+	    for (int i = 0; i < f.bits.length; i++) {
+		if (bb.remaining() < 8) {
+		    bb.compact();
+		    while (bb.hasRemaining() && in.read(bb) > 0) {
+			// fill
+		    }
+		    bb.flip();
+		}
+		f.bits[i] = bb.getLong();
+	    }
+	    return f;
+	}
+    }
+
+    @Override
+    public String toString() {
+	return String.format("%d keys in %d bits (%.1f per key), %d hashes, expected false positive rate %.4f",
+			     keys,m,(double)m/Math.max(1,keys),k,expectedFpp());
+    }
+}
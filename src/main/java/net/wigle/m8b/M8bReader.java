@@ -0,0 +1,288 @@
+package net.wigle.m8b;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.zip.GZIPInputStream;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * read-only view of an m8b file, looked up by key without loading it.
+ *
+ * open() parses the header and hands back a reader for the fixed size record
+ * versions (2 and 3, memory mapped, or inflated onto the heap when gzipped) or for
+ * the block compressed version 4. lookups don't change any state, so one reader
+ * can be shared between threads for as long as it is open.
+ *
+ * see Query for ranking the coords of a set of macs.
+ */
+public abstract class M8bReader implements Closeable {
+
+    /** maximum number of header bytes we'll look at for the 8 header lines */
+    private static final int MAX_HEADER = 256;
+
+    /** receives records in file order */
+    public interface RecordSink {
+	void accept(int key, int cell) throws IOException;
+    }
+
+    /** anything that can feed the cells of a key, like lookup() */
+    interface Lookup {
+	int lookup(int key, IntConsumer cells) throws IOException;
+    }
+
+    final int version;
+    final String hash;
+    final int slicebits;
+    final String coords;
+    final int idsize;
+    final int coordsize;
+
+    /** the sidecar key filter, null if there isn't one */
+    KeyFilter filter;
+
+    M8bReader(String[] s) {
+	version = Integer.parseInt(s[1],16);
+	hash = s[2];
+	slicebits = Integer.parseInt(s[3],16);
+	coords = s[4];
+	idsize = Integer.parseInt(s[5],16);
+	coordsize = Integer.parseInt(s[6],16);
+    }
+
+    /**
+     * open m8bFile (or a gzipped version 2/3 m8bFile) and parse its header.
+     * throws IOException if the header is malformed or describes a format we can't search.
+     * a key filter sidecar built for it (see KeyFilter) is picked up too.
+     */
+    public static M8bReader open(Path m8bFile) throws IOException {
+	M8bReader r = body(m8bFile);
+	try {
+	    r.filter = KeyFilter.open(m8bFile,r.slicebits,r.size());
+	} catch (IOException|RuntimeException e) {
+	    r.close();
+	    throw e;
+	}
+	return r;
+    }
+
+    /**
+     * open just the m8b itself
+     */
+    private static M8bReader body(Path m8bFile) throws IOException {
+	FileChannel ch = FileChannel.open(m8bFile, StandardOpenOption.READ);
+	try {
+	    ByteBuffer bb = ByteBuffer.allocate(MAX_HEADER);
+	    while (bb.hasRemaining() && ch.read(bb) > 0) {
+		// fill
+	    }
+	    byte[] tmp = bb.array();
+	    if (bb.position() >= 2 && tmp[0] == (byte)0x1f && tmp[1] == (byte)0x8b) {
+		ch.close();
+		return inflate(m8bFile);
+	    }
+	    int offset = headerEnd(tmp,bb.position());
+	    String[] s = header(tmp,offset);
+	    if (Integer.parseInt(s[1]) == 4) {
+		return new BlockReader(ch,s,offset+1);
+	    }
+	    return FlatReader.mapped(ch,s,offset+1);
+	} catch (IOException|RuntimeException e) {
+	    ch.close();
+	    throw e;
+	}
+    }
+
+    /**
+     * a gzipped m8b can't be searched inplace, inflate the body onto the heap
+     */
+    private static M8bReader inflate(Path m8bFile) throws IOException {
+	try (InputStream in = new GZIPInputStream(Files.newInputStream(m8bFile),1 << 16)) {
+	    byte[] tmp = new byte[MAX_HEADER];
+	    int len = 0;
+	    int r;
+	    while (len < tmp.length && (r = in.read(tmp,len,tmp.length-len)) > 0) {
+		len += r;
+	    }
+	    int offset = headerEnd(tmp,len);
+	    String[] s = header(tmp,offset);
+	    if (Integer.parseInt(s[1]) == 4) {
+		throw new IOException("unsupported version:4 (gzipped)");
+	    }
+	    return FlatReader.inflated(in,s,Arrays.copyOfRange(tmp,offset+1,len));
+	}
+    }
+
+    /** offset of the newline ending the 8th header line in tmp[0..len) */
+    private static int headerEnd(byte[] tmp, int len) throws IOException {
+	int linecount=0;
+	for ( int i = 0; i < len; i++ ) {
+	    if (tmp[i] == (byte)'\n') {
+		linecount++;
+		if ( linecount == 8 ) {
+		    return i;
+		}
+	    }
+	}
+	throw new IOException("malformed header");
+    }
+
+    /** the header lines, if we can search what they describe */
+    private static String[] header(byte[] tmp, int offset) throws IOException {
+	String[] s = new String(tmp,0,offset,Charset.forName("UTF-8")).split("\n");
+	if (!"MJG".equals(s[0])){
+	    throw new IOException("bad MaJGic");
+	}
+	int vers = Integer.parseInt(s[1]);
+	if (vers < 2 || vers > 4) {
+	    throw new IOException("unsupported version:"+vers);
+	}
+	if (!"SIP-2-4".equals(s[2])){
+	    throw new IOException("unsupported hash:"+s[2]);
+	}
+	if (!"MGRS-1000".equals(s[4])){
+	    throw new IOException("unsupported coords:"+s[4]);
+	}
+	if (Integer.parseInt(s[5],16) != 4) {
+	    throw new IOException("unsupported idsize:"+s[5]);
+	}
+	if (Integer.parseInt(s[6],16) != Records.coordsize(vers)) {
+	    throw new IOException("unsupported coordsize:"+s[6]);
+	}
+	return s;
+    }
+
+    /** format version, 2, 3 or 4 */
+    public int version() {
+	return version;
+    }
+
+    /** id hash, "SIP-2-4" */
+    public String hash() {
+	return hash;
+    }
+
+    /** bits of the hash kept as the key */
+    public int slicebits() {
+	return slicebits;
+    }
+
+    /** coordinate scheme, "MGRS-1000" */
+    public String coords() {
+	return coords;
+    }
+
+    /** key size in bytes */
+    public int idsize() {
+	return idsize;
+    }
+
+    /** coordinate size in bytes, 9 for version 2 mgrs strings, 4 for cell ids */
+    public int coordsize() {
+	return coordsize;
+    }
+
+    /** number of records in the body */
+    public abstract long size();
+
+    /**
+     * hand the cell id (see mgrs.cellToBytes) of every record with key to cells, return how many there were
+     */
+    public int lookup(int key, IntConsumer cells) throws IOException {
+	if (filter != null && !filter.mightContain(key)) {
+	    return 0;
+	}
+	return find(key,cells);
+    }
+
+    /**
+     * as lookup, without asking the filter
+     */
+    abstract int find(int key, IntConsumer cells) throws IOException;
+
+    /**
+     * the cell ids of every record with key
+     */
+    public int[] lookup(int key) throws IOException {
+	int[][] buf = {new int[8]};
+	int[] n = {0};
+	lookup(key,(cell)->{
+	    if (n[0] == buf[0].length) {
+		buf[0] = Arrays.copyOf(buf[0],n[0]*2);
+	    }
+	    buf[0][n[0]++] = cell;
+	});
+	return Arrays.copyOf(buf[0],n[0]);
+    }
+
+    /**
+     * the cells of each of keys, cells[i] for keys[i]. keys are looked up in ascending
+     * order, so the file is walked front to back rather than hopped around.
+     */
+    public int[][] lookupAll(int[] keys) throws IOException {
+	int[][] cells = new int[keys.length][];
+	for (int i : ascending(keys)) {
+	    cells[i] = lookup(keys[i]);
+	}
+	return cells;
+    }
+
+    /**
+     * indexes of keys, in unsigned key order
+     */
+    static int[] ascending(int[] keys) {
+	long[] kx = new long[keys.length];
+	for (int i = 0; i < keys.length; i++) {
+	    kx[i] = Records.pack(keys[i],i);
+	}
+	Arrays.sort(kx);
+	int[] idx = new int[keys.length];
+	for (int i = 0; i < kx.length; i++) {
+	    idx[i] = Records.cell(kx[i]);
+	}
+	return idx;
+    }
+
+    /**
+     * hand every record to sink, in file order
+     */
+    public abstract void forEach(RecordSink sink) throws IOException;
+}
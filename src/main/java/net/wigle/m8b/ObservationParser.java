@@ -0,0 +1,167 @@
+package net.wigle.m8b;
+
+import java.nio.charset.Charset;
+import net.wigle.m8b.siphash.SipHash;
+import net.wigle.m8b.siphash.SipKey;
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * parses mac|lat|lon lines straight out of a byte buffer, no Strings.
+ *
+ * the mac (as a long, see SipHash.digestMac), lat and lon are left in fields.
+ * one parser per thread, it is all mutable state.
+ */
+final class ObservationParser {
+
+    /** exactly representable powers of ten */
+    private static final double[] POW10 = {
+	1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+	1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /** largest mantissa that a double holds exactly */
+    private static final long MAXEXACT = (1L << 53);
+
+    private final byte sep;
+
+    long mac;
+    double lat;
+    double lon;
+
+    ObservationParser(char sep) {
+	this.sep = (byte)sep;
+    }
+
+    /**
+     * parse one line buf[start..end), without its terminator.
+     * throws the same IllegalArgumentException/NumberFormatException that the String path would on garbage.
+     */
+    void parse(byte[] buf, int start, int end) {
+	//bssid|bestlat|bestlon
+	//8e:15:44:60:50:ac|40.00900289|-75.21358834
+
+	int b1 = indexOf(buf,start,end,sep);
+	int b2 = b1 < 0 ? -1 : indexOf(buf,b1+1,end,sep);
+	if (b2 < 0 || end - start < 17) {
+	    throw new IllegalArgumentException("malformed line '"+new String(buf,start,end-start,Charset.forName("UTF-8"))+"'");
+	}
+
+	long m = 0;
+	for ( int i = 0; i < 6; i++ ) {
+	    int hi = nybbleFrom(buf[start+(i*3)]);
+	    int lo = nybbleFrom(buf[start+(i*3)+1]);
+	    m = (m << 8) | (hi << 4) | lo;
+	}
+	mac = m;
+
+	lat = parseDouble(buf,b1+1,b2);
+	lon = parseDouble(buf,b2+1,end);
+    }
+
+    /**
+     * siphash(sipkey,mac) masked to the low-n bits, as m8b.extractIntKeyFrom
+     */
+    int key(SipKey sipkey, int n) {
+	long siph = SipHash.digestMac(sipkey, mac);
+	long mask = (1L << n ) - 1;
+	return (int)(siph & mask);
+    }
+
+    private static int indexOf(byte[] buf, int from, int end, byte b) {
+	for (int i = from; i < end; i++) {
+	    if (buf[i] == b) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * decimal [+-]digits[.digits] to double.
+     * when the digits fit in 53 bits and there are no more than 22 of them after the point,
+     * m / 10^k is a single correctly rounded division, which is exactly what Double.parseDouble
+     * returns. anything else (exponents, long mantissas, whitespace, junk) goes to Double.parseDouble.
+     */
+    static double parseDouble(byte[] buf, int start, int end) {
+	int i = start;
+	boolean neg = false;
+	if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+	    neg = buf[i] == '-';
+	    i++;
+	}
+	long m = 0;
+	int digits = 0;
+	int scale = -1;
+	for (; i < end; i++) {
+	    byte c = buf[i];
+	    if (c >= '0' && c <= '9') {
+		m = (m * 10) + (c - '0');
+		digits++;
+		if (scale >= 0) {
+		    scale++;
+		}
+		if (m >= MAXEXACT) {
+		    return slow(buf,start,end);
+		}
+	    } else if (c == '.' && scale < 0) {
+		scale = 0;
+	    } else {
+		return slow(buf,start,end);
+	    }
+	}
+	if (digits == 0 || scale >= POW10.length) {
+	    return slow(buf,start,end);
+	}
+	double d = scale > 0 ? m / POW10[scale] : (double)m;
+	return neg ? -d : d;
+    }
+
+    private static double slow(byte[] buf, int start, int end) {
+	return Double.parseDouble(new String(buf,start,end-start,Charset.forName("UTF-8")));
+    }
+
+    /**
+     * return the nybble value of hex char c
+     */
+    private static int nybbleFrom(byte c) {
+	if (c >= '0' && c <= '9') {
+	    return c - '0';
+	}
+	if (c >= 'a' && c <= 'f') {
+	    return c - 'a' + 10;
+	}
+	if (c >= 'A' && c <= 'F') {
+	    return c - 'A' + 10;
+	}
+	throw new IllegalArgumentException("non hex char '"+(char)c+"'");
+    }
+}
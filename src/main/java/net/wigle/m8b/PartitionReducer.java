@@ -0,0 +1,165 @@
+package net.wigle.m8b;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * sorts and de-duplicates independent partitions (see PartitionSorter) on a pool of workers.
+ *
+ * a partition costs what its sorter holds, ENTRYCOST per record up to the sort budget.
+ * partitions are started biggest first, whenever one fits in what is left of the budget,
+ * so two big ones never run together. a partition bigger than the whole budget waits until
+ * it has the budget to itself (and sorts in runs, as PartitionSorter does). each partition
+ * goes to its own output, so the outputs are the same however many workers there are.
+ */
+final class PartitionReducer {
+
+    private final int workers;
+    private final int threads;
+    /** per partition sort memory, 0 for no bound (see PartitionSorter.capacity) */
+    private final long sortBudget;
+    /** what the running partitions may hold between them */
+    private final long budget;
+
+    /** totals of the last reduce() */
+    long written;
+    int spills;
+    long peak;
+
+    /**
+     * up to workers partitions at once, each sorting on threads threads within sortBudget bytes
+     * (0 for none, then the running ones share half the heap)
+     */
+    PartitionReducer(int workers, int threads, long sortBudget) {
+	this.workers = Math.max(1,workers);
+	this.threads = Math.max(1,threads);
+	this.sortBudget = sortBudget;
+	this.budget = sortBudget > 0 ? sortBudget : Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    /** heap held while sorting a partition of records records */
+    long cost(long records) {
+	return PartitionSorter.cost(sortBudget,records);
+    }
+
+    /**
+     * sort parts[i] (intermediate records) into new file outs[i] as m8b version records.
+     * returns the dups suppressed per partition.
+     */
+    int[] reduce(Path[] parts, Path[] outs, int version) throws Exception {
+	int n = parts.length;
+	long[] cost = new long[n];
+	List<Integer> pending = new ArrayList<>();
+	for (int i = 0; i < n; i++) {
+	    cost[i] = cost(Files.size(parts[i]) / PartitionSorter.RECORDSIZE);
+	    pending.add(i);
+	}
+	pending.sort((a,b)->Long.compare(cost[b],cost[a]));
+
+	int[] dups = new int[n];
+	written = 0;
+	spills = 0;
+	peak = 0;
+	ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers,Math.max(1,n)));
+	ExecutorCompletionService<int[]> done = new ExecutorCompletionService<>(pool);
+	try {
+	    int running = 0;
+	    long held = 0;
+	    while (!pending.isEmpty() || running > 0) {
+		// start whatever fits, biggest first
+		for (int j = 0; j < pending.size() && running < workers; ) {
+		    int i = pending.get(j);
+		    if (running > 0 && held + cost[i] > budget) {
+			j++;
+			continue;
+		    }
+		    pending.remove(j);
+		    held += cost[i];
+		    running++;
+		    peak = Math.max(peak,held);
+		    done.submit(()->sort(i,parts[i],outs[i],version));
+		}
+		int[] r = get(done);
+		running--;
+		held -= cost[r[0]];
+		dups[r[0]] = r[1];
+		spills += r[2];
+		written += r[3];
+	    }
+	} finally {
+	    pool.shutdownNow();
+	}
+	return dups;
+    }
+
+    /** {index, dups, spills, written} of sorting part into out */
+    private int[] sort(int index, Path part, Path out, int version) throws IOException {
+	int records = (int)(Files.size(part) / PartitionSorter.RECORDSIZE);
+	PartitionSorter sorter = new PartitionSorter(PartitionSorter.capacity(sortBudget,Math.max(1,records)),threads);
+	try (SeekableByteChannel outc = Files.newByteChannel(out, EnumSet.of(StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE))) {
+	    int dups = sorter.sort(part,outc,version);
+	    return new int[] {index,dups,sorter.spills,(int)sorter.written};
+	}
+    }
+
+    private static int[] get(ExecutorCompletionService<int[]> done) throws Exception {
+	try {
+	    return done.take().get();
+	} catch (ExecutionException ee) {
+	    Throwable t = ee.getCause();
+	    if (t instanceof Exception) {
+		throw (Exception)t;
+	    }
+	    if (t instanceof Error) {
+		throw (Error)t;
+	    }
+	    throw ee;
+	}
+    }
+
+    @Override
+    public String toString() {
+	return "reduced on "+workers+" workers, peak ~"+peak+"b of a "+budget+"b budget";
+    }
+}
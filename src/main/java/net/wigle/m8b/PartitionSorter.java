@@ -0,0 +1,342 @@
+package net.wigle.m8b;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * sort and de-duplicate intermediate record files (LE int32 key, 9 byte mgrs).
+ *
+ * records are held as packed longs (see Records). a partition that fits in the entries
+ * buffer is sorted in memory. a bigger one is cut into sorted runs that are spilled
+ * next to it (in the 8 byte packed form), then k-way merged, at most fanin runs at a time:
+ * with more, the first fanin are merged into one more run, and so on until few enough are
+ * left. either way the output is in RecComparator order with adjacent duplicates
+ * suppressed, so it is byte for byte the same.
+ *
+ * the merge buffers (one per run merged and one for the output) come out of the same
+ * budget as the entries, which is why a budget buys a little less than budget/ENTRYCOST.
+ */
+final class PartitionSorter {
+
+    static final int RECORDSIZE = Records.RECORDSIZE;
+
+    /** heap cost of one entry, the record and its radix scratch */
+    static final int ENTRYCOST = 16;
+
+    /** read buffer per merged run */
+    private static final int RUNBUFFER = 64 << 10;
+
+    /** most runs merged at once */
+    static final int FANIN = 64;
+
+    private final long[] entries;
+    private final int fanin;
+    private final RadixSort radix;
+    private final byte[] mgrs = new byte[9];
+
+    /** records written by all sort() calls */
+    long written;
+
+    /** duplicates suppressed by all sort() calls */
+    long dups;
+
+    /** runs spilled by all sort() calls */
+    int spills;
+
+    /**
+     * capacity is the most records held in memory at once, sorted on up to threads threads
+     */
+    PartitionSorter(int capacity, int threads) {
+	entries = new long[capacity];
+	radix = new RadixSort(capacity,threads);
+	fanin = fanin(capacity);
+    }
+
+    /**
+     * runs merged at once by a sorter of capacity, its merge buffers taking no more than an
+     * eighth of what its entries do, but at least 2
+     */
+    static int fanin(int capacity) {
+	return (int)Math.max(2,Math.min(FANIN,(long)capacity * ENTRYCOST / 8 / RUNBUFFER - 1));
+    }
+
+    /** heap taken by the buffers of a merge of fanin runs */
+    private static long mergeCost(int fanin) {
+	return (fanin + 1L) * RUNBUFFER;
+    }
+
+    /**
+     * capacity for a heap budget of budget bytes, merge buffers included, but no more than
+     * max records (budget 0 is just max)
+     */
+    static int capacity(long budget, int max) {
+	if (budget <= 0) {
+	    return max;
+	}
+	long c = budget / 9 * 8 / ENTRYCOST;
+	if (c * ENTRYCOST + mergeCost(fanin((int)Math.min(Integer.MAX_VALUE-8,c))) > budget) {
+	    // too small for an eighth to buy the fewest merge buffers
+	    c = (budget - mergeCost(2)) / ENTRYCOST;
+	}
+	return (int)Math.max(1,Math.min(max,c));
+    }
+
+    /**
+     * heap held sorting a partition of records records within budget (see capacity)
+     */
+    static long cost(long budget, long records) {
+	int c = capacity(budget,(int)Math.min(Integer.MAX_VALUE-8,Math.max(1,records)));
+	return c * (long)ENTRYCOST + (c < records ? mergeCost(fanin(c)) : 0);
+    }
+
+    /**
+     * sort part, suppress dups, append to out. returns the dups suppressed.
+     */
+    int sort(Path part, WritableByteChannel out) throws IOException {
+	return sort(part,out,2);
+    }
+
+    /**
+     * sort part, suppress dups, append to out as m8b version records. returns the dups suppressed.
+     */
+    int sort(Path part, WritableByteChannel out, int version) throws IOException {
+	ByteBuffer ib = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN); // screw you, java
+	ib.flip(); // start empty
+	List<Path> runs = new ArrayList<>();
+	long read = 0;
+	long wrote = 0;
+
+	try (SeekableByteChannel in = Files.newByteChannel(part, EnumSet.of(StandardOpenOption.READ))) {
+	    boolean eof = false;
+	    while (!eof) {
+		int idx = 0;
+		while (idx < entries.length) {
+		    if (ib.remaining() < RECORDSIZE) {
+			ib.compact(); // partial reads.
+			int r = in.read(ib);
+			ib.flip();
+			if (r < 0) {
+			    eof = true;
+			    break;
+			}
+			continue;
+		    }
+		    entries[idx++] = Records.get(ib,mgrs);
+		}
+		if (!eof) {
+		    // full buffer, is that the end of the file?
+		    ib.compact();
+		    eof = in.read(ib) < 0 && ib.position() == 0;
+		    ib.flip();
+		}
+		read += idx;
+
+		radix.sort(entries,idx);
+
+		if (eof && runs.isEmpty()) {
+		    wrote = write(entries,idx,out,version,mgrs);
+		} else if (idx > 0) {
+		    Path run = part.resolveSibling(part.getFileName()+".run"+runs.size());
+		    try (SeekableByteChannel rc = Files.newByteChannel(run, EnumSet.of(StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE))) {
+			write(entries,idx,rc,3,mgrs);
+		    }
+		    runs.add(run);
+		    spills++;
+		}
+	    }
+	}
+
+	if (!runs.isEmpty()) {
+	    wrote = merge(part,runs,out,version);
+	}
+
+	written += wrote;
+	dups += read - wrote;
+	return (int)(read - wrote);
+    }
+
+    /**
+     * write sorted recs[0..n) to out as m8b version records skipping adjacent dups, return records written
+     */
+    static long write(long[] recs, int n, WritableByteChannel out, int version, byte[] mgrs) throws IOException {
+	int recordsize = Records.size(version);
+	ByteBuffer ob = ByteBuffer.allocate(RUNBUFFER).order(ByteOrder.LITTLE_ENDIAN);
+	long w = 0;
+	for ( int j = 0; j < n; j++ ) {
+	    // suppress dups
+	    if ( j > 0 && recs[j-1] == recs[j]) {
+		continue;
+	    }
+	    if (ob.remaining() < recordsize ) {
+		flush(ob,out);
+	    }
+	    Records.put(ob,recs[j],version,mgrs);
+	    w++;
+	}
+	flush(ob,out);
+	return w;
+    }
+
+    /**
+     * sort recs[0..n) and squeeze out the dups in place, return the new n
+     */
+    static int sortUnique(long[] recs, int n, RadixSort radix) {
+	radix.sort(recs,n);
+	int w = 0;
+	for (int j = 0; j < n; j++) {
+	    if (w == 0 || recs[w-1] != recs[j]) {
+		recs[w++] = recs[j];
+	    }
+	}
+	return w;
+    }
+
+    /**
+     * merge part's sorted runs into out, fanin at a time, skipping dups across runs. removes the runs.
+     */
+    private long merge(Path part, List<Path> runs, WritableByteChannel out, int version) throws IOException {
+	List<Path> left = new ArrayList<>(runs);
+	int next = runs.size();
+	try {
+	    while (left.size() > fanin) {
+		// the oldest fanin runs into a new one at the back, so each record is merged about log(runs) times
+		List<Path> group = new ArrayList<>(left.subList(0,fanin));
+		left.subList(0,fanin).clear();
+		Path run = part.resolveSibling(part.getFileName()+".run"+(next++));
+		try (SeekableByteChannel rc = Files.newByteChannel(run, EnumSet.of(StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE))) {
+		    left.add(run);
+		    merge(group,rc,3);
+		}
+	    }
+	    return merge(left,out,version);
+	} finally {
+	    for (Path p : left) {
+		Files.deleteIfExists(p);
+	    }
+	}
+    }
+
+    /**
+     * k-way merge of sorted runs into out, skipping dups across runs. removes the runs.
+     */
+    private static long merge(List<Path> runs, WritableByteChannel out, int version) throws IOException {
+	int recordsize = Records.size(version);
+	PriorityQueue<Run> pq = new PriorityQueue<>(runs.size(), (a,b)->Long.compare(a.rec,b.rec));
+	List<Run> open = new ArrayList<>();
+	try {
+	    for (Path p : runs) {
+		Run r = new Run(p);
+		open.add(r);
+		if (r.next()) {
+		    pq.add(r);
+		}
+	    }
+
+	    ByteBuffer ob = ByteBuffer.allocate(RUNBUFFER).order(ByteOrder.LITTLE_ENDIAN);
+	    byte[] mgrs = new byte[9];
+	    long last = 0;
+	    boolean any = false;
+	    long w = 0;
+	    while (!pq.isEmpty()) {
+		Run r = pq.poll();
+		if (!any || last != r.rec) {
+		    if (ob.remaining() < recordsize) {
+			flush(ob,out);
+		    }
+		    Records.put(ob,r.rec,version,mgrs);
+		    last = r.rec;
+		    any = true;
+		    w++;
+		}
+		if (r.next()) {
+		    pq.add(r);
+		}
+	    }
+	    flush(ob,out);
+	    return w;
+	} finally {
+	    for (Run r : open) {
+		r.in.close();
+	    }
+	    for (Path p : runs) {
+		Files.deleteIfExists(p);
+	    }
+	}
+    }
+
+    private static void flush(ByteBuffer bb, WritableByteChannel out) throws IOException {
+	bb.flip();
+	while (bb.hasRemaining()){
+	    out.write(bb);
+	}
+	bb.clear();
+    }
+
+    /**
+     * cursor over one spilled run
+     */
+    private static final class Run {
+	final SeekableByteChannel in;
+	final ByteBuffer bb = ByteBuffer.allocate(RUNBUFFER).order(ByteOrder.LITTLE_ENDIAN);
+	long rec;
+
+	Run(Path p) throws IOException {
+	    in = Files.newByteChannel(p, EnumSet.of(StandardOpenOption.READ));
+	    bb.flip();
+	}
+
+	/** advance to the next record, false at the end of the run */
+	boolean next() throws IOException {
+	    while (bb.remaining() < Records.PACKEDSIZE) {
+		bb.compact();
+		int r = in.read(bb);
+		bb.flip();
+		if (r < 0) {
+		    return false;
+		}
+	    }
+	    rec = Records.getPacked(bb);
+	    return true;
+	}
+    }
+}
@@ -0,0 +1,317 @@
+package net.wigle.m8b;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * appends intermediate records (LE int32 key, 9 byte mgrs) to a set of partition files.
+ *
+ * each partition fills a large direct buffer from a shared pool. a full buffer is either
+ * written there and then, or, with write behind, queued for a writer thread and swapped for
+ * a free one. the writer takes whatever has queued up and hands each partition's share to
+ * one gathering write. buffers only come back to the pool once written, so a slow disk
+ * holds up whoever is filling them rather than piling them up in memory.
+ */
+final class PartitionWriter implements Closeable {
+
+    static final int RECORDSIZE = Records.RECORDSIZE;
+
+    /** buffer size when not told, if the pool can afford it */
+    static final int BUFFER = 1 << 20;
+
+    /** most pooled memory, told a buffer size or not */
+    static final long POOL = 64L << 20;
+
+    /** most buffers in flight to the writer thread */
+    static final int SPARES = 32;
+
+    private final FileChannel[] out;
+    private final ByteBuffer[] fill;
+    private final int size;
+    /** direct memory the pool may take, at most POOL */
+    final long pooled;
+
+    /** free buffers, and how many may still be allocated */
+    private final BlockingQueue<ByteBuffer> free;
+    private int unallocated;
+
+    /** write behind queue and thread, null if writing inline */
+    private final BlockingQueue<Pending> queue;
+    private final Thread writer;
+    private volatile Throwable failed;
+
+    /** bytes written, write calls and the buffers they took */
+    private long bytes;
+    private long writes;
+    private long buffers;
+
+    /** a full buffer for partition idx, idx -1 says stop */
+    private static final class Pending {
+	final int idx;
+	final ByteBuffer bb;
+
+	Pending(int idx, ByteBuffer bb) {
+	    this.idx = idx;
+	    this.bb = bb;
+	}
+    }
+
+    /**
+     * create paths, with buffers of buffer bytes (0 for BUFFER), written behind if behind.
+     * the buffers shrink until they all fit in POOL, thousands of partitions get small ones
+     */
+    PartitionWriter(Path[] paths, int buffer, boolean behind) throws IOException {
+	int spares = behind ? Math.min(SPARES,Math.max(2,paths.length)) : 0;
+	int count = paths.length + spares;
+	int fit = (int)Math.max(RECORDSIZE,POOL / count);
+	size = Math.min(fit,buffer > 0 ? Math.max(RECORDSIZE,buffer) : BUFFER);
+	pooled = (long)size * count;
+	free = new ArrayBlockingQueue<>(count);
+	unallocated = count;
+	fill = new ByteBuffer[paths.length];
+	out = new FileChannel[paths.length];
+	try {
+	    for (int i = 0; i < paths.length; i++) {
+		out[i] = FileChannel.open(paths[i],StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE);
+	    }
+	} catch (IOException e) {
+	    closeAll();
+	    throw e;
+	}
+	if (behind) {
+	    queue = new LinkedBlockingQueue<>();
+	    writer = new Thread(this::writeBehind,"partition-writer");
+	    writer.setDaemon(true);
+	    writer.start();
+	} else {
+	    queue = null;
+	    writer = null;
+	}
+    }
+
+    /** number of partitions */
+    int partitions() {
+	return out.length;
+    }
+
+    /**
+     * append key and mgrs[off..off+9) to partition idx
+     */
+    void put(int idx, int key, byte[] mgrs, int off) throws IOException {
+	ByteBuffer bb = fill[idx];
+	if (bb == null || bb.remaining() < RECORDSIZE) {
+	    bb = fill[idx] = swap(idx,bb);
+	}
+	bb.putInt(key).put(mgrs,off,Ingest.MGRSIZE);
+    }
+
+    /**
+     * hand off the full bb of partition idx (if any), return the buffer to go on with
+     */
+    private ByteBuffer swap(int idx, ByteBuffer bb) throws IOException {
+	if (bb != null && queue == null) {
+	    bb.flip();
+	    write(out[idx],new ByteBuffer[]{bb});
+	    bb.clear();
+	    return bb;
+	}
+	if (bb != null) {
+	    check();
+	    queue.add(new Pending(idx,bb));
+	}
+	return take();
+    }
+
+    /** a free buffer, a new one while the pool has room, else wait for one to be written */
+    private ByteBuffer take() throws IOException {
+	ByteBuffer bb = free.poll();
+	if (bb != null) {
+	    return bb;
+	}
+	if (unallocated > 0) {
+	    unallocated--;
+	    return ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	try {
+	    return free.take();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("interrupted waiting for a write buffer",e);
+	}
+    }
+
+    /** write all of bbs to ch */
+    private void write(FileChannel ch, ByteBuffer[] bbs) throws IOException {
+	ByteBuffer last = bbs[bbs.length-1];
+	while (last.hasRemaining()) {
+	    bytes += ch.write(bbs);
+	    writes++;
+	}
+	buffers += bbs.length;
+    }
+
+    /**
+     * the write behind thread. whatever has queued is grouped by partition, in queue order,
+     * and each group goes out in one gathering write.
+     */
+    private void writeBehind() {
+	List<Pending> batch = new ArrayList<>();
+	List<ByteBuffer> group = new ArrayList<>();
+	boolean stop = false;
+	try {
+	    while (!stop) {
+		batch.add(queue.take());
+		queue.drainTo(batch);
+		for (int i = 0; i < batch.size(); i++) {
+		    Pending p = batch.get(i);
+		    if (p.idx < 0) {
+			stop = true;
+			continue;
+		    }
+		    if (p.bb == null) {
+			continue; // went out with an earlier one
+		    }
+		    group.clear();
+		    for (int j = i; j < batch.size(); j++) {
+			Pending q = batch.get(j);
+			if (q.idx == p.idx && q.bb != null) {
+			    q.bb.flip();
+			    group.add(q.bb);
+			    if (j > i) {
+				batch.set(j,new Pending(q.idx,null));
+			    }
+			}
+		    }
+		    if (failed == null) {
+			try {
+			    write(out[p.idx],group.toArray(new ByteBuffer[group.size()]));
+			} catch (IOException|RuntimeException e) {
+			    failed = e; // keep freeing buffers so the filler sees it rather than hangs
+			}
+		    }
+		    for (ByteBuffer bb : group) {
+			bb.clear();
+			free.add(bb);
+		    }
+		}
+		batch.clear();
+	    }
+	} catch (InterruptedException e) {
+	    // closed in a hurry
+	}
+    }
+
+    /** throw whatever the writer thread ran into */
+    private void check() throws IOException {
+	Throwable t = failed;
+	if (t instanceof IOException) {
+	    throw new IOException("write behind failed",t);
+	}
+	if (t != null) {
+	    throw new IllegalStateException("write behind failed",t);
+	}
+    }
+
+    /**
+     * write out what's buffered, wait for the writer and close the partitions
+     */
+    @Override
+    public void close() throws IOException {
+	try {
+	    for (int i = 0; i < fill.length; i++) {
+		ByteBuffer bb = fill[i];
+		fill[i] = null;
+		if (bb == null || bb.position() == 0) {
+		    continue;
+		}
+		if (queue == null) {
+		    bb.flip();
+		    write(out[i],new ByteBuffer[]{bb});
+		} else {
+		    queue.add(new Pending(i,bb));
+		}
+	    }
+	    if (writer != null) {
+		queue.add(new Pending(-1,null));
+		try {
+		    writer.join();
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    throw new IOException("interrupted waiting for the write behind",e);
+		}
+		check();
+	    }
+	} finally {
+	    if (writer != null) {
+		writer.interrupt();
+	    }
+	    closeAll();
+	}
+    }
+
+    private void closeAll() throws IOException {
+	IOException first = null;
+	for (FileChannel ch : out) {
+	    if (ch == null) {
+		continue;
+	    }
+	    try {
+		ch.close();
+	    } catch (IOException e) {
+		if (first == null) {
+		    first = e;
+		}
+	    }
+	}
+	if (first != null) {
+	    throw first;
+	}
+    }
+
+    @Override
+    public String toString() {
+	return String.format("wrote %dMB to %d partitions in %d writes of %d %dKB buffers%s",
+			     bytes >> 20,out.length,writes,buffers,size >> 10,writer == null ? "" : ", written behind");
+    }
+}
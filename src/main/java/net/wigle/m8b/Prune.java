@@ -0,0 +1,198 @@
+package net.wigle.m8b;
+
+import java.util.Arrays;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * drops the records of coords that a bigger coord dominates (see Dominance).
+ *
+ * every key seen at a dominated coord is also seen at its dominator, so any query hits the
+ * dominator at least as often and the dominated coord can only rank at or below it. it can
+ * still tie, and then the best answer moves, so this is lossy: compare says by how much.
+ * with deduplicated records, merging a dominated coord into its dominator is the same as
+ * dropping it.
+ *
+ * a dominator with no more records than the coord has exactly its keys, the two tie on
+ * every query and neither is the better answer, so both stay.
+ *
+ * policy "all" drops every coord a bigger one dominates. "near:n" only drops a coord with
+ * such a dominator no more than n squares east/west and north/south of it, in the same
+ * 100k square, so answers move by at most n km.
+ */
+final class Prune {
+
+    /** how far a dominator may be, in squares, -1 for anywhere */
+    final int near;
+
+    /** what the last apply() did */
+    int coords;
+    int dropped;
+    long records;
+    long kept;
+
+    private Prune(int near) {
+	this.near = near;
+    }
+
+    /**
+     * the policy for spec, "all" or "near:n"
+     */
+    static Prune policy(String spec) {
+	if ("all".equals(spec)) {
+	    return new Prune(-1);
+	}
+	if (spec.startsWith("near:")) {
+	    int n = Integer.parseInt(spec.substring(5));
+	    if (n < 0 || n > 99) {
+		throw new IllegalArgumentException("bad prune distance:"+n);
+	    }
+	    return new Prune(n);
+	}
+	throw new IllegalArgumentException("unknown prune policy:"+spec);
+    }
+
+    /**
+     * drop the dominated coords' records from recs[0..n) (packed, see Records, in key order),
+     * squeezing the rest down in order. returns how many are left.
+     */
+    int apply(long[] recs, int n) {
+	// keys are runs, coords are numbered by first sighting
+	int[] recKey = new int[n];
+	int[] recCoord = new int[n];
+	CellHistogram ids = new CellHistogram(1 << 16);
+	int[] coordCell = new int[1024];
+	int keys = 0;
+	int ncoords = 0;
+	for (int i = 0; i < n; i++) {
+	    if (i > 0 && Records.key(recs[i]) != Records.key(recs[i-1])) {
+		keys++;
+	    }
+	    recKey[i] = keys;
+	    int cell = Records.cell(recs[i]);
+	    int c = ids.get(cell);
+	    if (c == 0) {
+		c = ++ncoords;
+		ids.add(cell,c);
+		if (ncoords > coordCell.length) {
+		    coordCell = Arrays.copyOf(coordCell,coordCell.length*2);
+		}
+		coordCell[c-1] = cell;
+	    }
+	    recCoord[i] = c - 1;
+	}
+	keys = n == 0 ? 0 : keys + 1;
+	ids = null;
+
+	Dominance g = new Dominance(recKey,recCoord,n,keys,ncoords);
+	recKey = null;
+	int[] order = new int[ncoords];
+	for (int c = 0; c < ncoords; c++) {
+	    order[c] = c;
+	}
+	Dominance.Walk dw = new Dominance.Walk(g,order,1);
+	int[] pairs = dw.run(10000);
+	System.out.println(dw);
+
+	// dominators of each coord
+	int[] start = new int[ncoords+1];
+	for (int p = 1; p < pairs.length; p += 2) {
+	    start[pairs[p]+1]++;
+	}
+	for (int c = 0; c < ncoords; c++) {
+	    start[c+1] += start[c];
+	}
+	int[] by = new int[pairs.length/2];
+	int[] fill = Arrays.copyOf(start,ncoords);
+	for (int p = 0; p < pairs.length; p += 2) {
+	    by[fill[pairs[p+1]]++] = pairs[p];
+	}
+	pairs = null;
+
+	// biggest first (a dominator has at least as many records), then lowest cell.
+	// a coord goes when one of its dominators, near enough and with more records, has already stayed.
+	long[] biggest = new long[ncoords];
+	for (int c = 0; c < ncoords; c++) {
+	    biggest[c] = ((long)(Integer.MAX_VALUE - g.records(c)) << 32) | (coordCell[c] & 0xffffffffL);
+	}
+	Arrays.parallelSort(biggest);
+	CellHistogram coordOf = new CellHistogram(ncoords);
+	for (int c = 0; c < ncoords; c++) {
+	    coordOf.add(coordCell[c],c+1);
+	}
+	boolean[] stays = new boolean[ncoords];
+	boolean[] goes = new boolean[ncoords];
+	dropped = 0;
+	for (long b : biggest) {
+	    int c = coordOf.get((int)b) - 1;
+	    for (int d = start[c]; d < start[c+1]; d++) {
+		if (stays[by[d]] && g.records(by[d]) > g.records(c) && near(coordCell[c],coordCell[by[d]])) {
+		    goes[c] = true;
+		    break;
+		}
+	    }
+	    if (goes[c]) {
+		dropped++;
+	    } else {
+		stays[c] = true;
+	    }
+	}
+
+	int w = 0;
+	for (int i = 0; i < n; i++) {
+	    if (!goes[recCoord[i]]) {
+		recs[w++] = recs[i];
+	    }
+	}
+	coords = ncoords;
+	records = n;
+	kept = w;
+	return w;
+    }
+
+    /** whether cells a and b are close enough for the policy */
+    private boolean near(int a, int b) {
+	if (near < 0) {
+	    return true;
+	}
+	// cell is ((100k square)*100+e)*100+n
+	return a / 10000 == b / 10000
+	    && Math.abs(((a / 100) % 100) - ((b / 100) % 100)) <= near
+	    && Math.abs((a % 100) - (b % 100)) <= near;
+    }
+
+    @Override
+    public String toString() {
+	return String.format("pruned %d of %d coords, %d of %d records (%.1f%%)",
+			     dropped,coords,records-kept,records,records == 0 ? 0.0 : (100.0*(records-kept))/records);
+    }
+}
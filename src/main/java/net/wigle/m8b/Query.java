@@ -0,0 +1,177 @@
+package net.wigle.m8b;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import net.wigle.m8b.siphash.SipKey;
+import net.wigle.m8b.geodesy.mgrs;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * ranks the coords of a set of macs against an m8b, the way m8b query does.
+ *
+ *   try (M8bReader r = M8bReader.open(path)) {
+ *       Query.Result res = new Query(r).rank("8e:15:44:60:50:ac", ...);
+ *       res.coords(0); // most likely 1km square
+ *   }
+ *
+ * a Query holds no per call state (the histogram is per thread and reused), so it can
+ * be shared between threads like its reader.
+ */
+public final class Query {
+
+    /** just zerokey it. we're not trying to avoid collisions. */
+    private static final SipKey SIPKEY = new SipKey(new byte[16]);
+
+    private final M8bReader.Lookup lookup;
+    private final int slicebits;
+
+    /**
+     * queries against reader, which must stay open while the Query is used
+     */
+    public Query(M8bReader reader) {
+	this(reader::lookup,reader.slicebits());
+    }
+
+    Query(M8bReader.Lookup lookup, int slicebits) {
+	this.lookup = lookup;
+	this.slicebits = slicebits;
+    }
+
+    /**
+     * the key of mac (hex pairs and one separator between, 8e:15:44:60:50:ac) sliced to n bits
+     */
+    public static int key(String mac, int n) {
+	return m8b.extractIntKeyFrom(mac,new byte[6],SIPKEY,n);
+    }
+
+    /** reused histogram, one per thread */
+    private static final ThreadLocal<CellHistogram> HIST = ThreadLocal.withInitial(CellHistogram::new);
+
+    /**
+     * histogram the cells of the keys of macs, most hits first
+     */
+    public Result rank(String... macs) throws IOException {
+	return rank(-1,macs);
+    }
+
+    /**
+     * as rank(String...)
+     */
+    public Result rank(Collection<String> macs) throws IOException {
+	return rank(-1,macs);
+    }
+
+    /**
+     * as rank(String...), but only the top coords (all of them when top &lt; 0).
+     * the rest are never sorted.
+     */
+    public Result rank(int top, String... macs) throws IOException {
+	byte[] macbytes = new byte[6];
+	CellHistogram hist = HIST.get();
+	int[] hits = new int[macs.length];
+	int nhits = 0;
+
+	try {
+	    for (String mac : macs) {
+		int key = m8b.extractIntKeyFrom(mac,macbytes,SIPKEY,slicebits);
+		if (lookup.lookup(key,hist::add) > 0) {
+		    hits[nhits++] = key;
+		}
+	    }
+	    // loaded counts distinct keys, as scan does: macs sharing a key are one
+	    Arrays.sort(hits,0,nhits);
+	    int loaded = 0;
+	    for (int i = 0; i < nhits; i++) {
+		if (i == 0 || hits[i] != hits[i-1]) {
+		    loaded++;
+		}
+	    }
+	    // larger sums = more likely coords, ties in coords order
+	    int[][] ranked = hist.top(top);
+	    return new Result(loaded,ranked[0],ranked[1]);
+	} finally {
+	    hist.clear();
+	}
+    }
+
+    /**
+     * as rank(int,String...)
+     */
+    public Result rank(int top, Collection<String> macs) throws IOException {
+	return rank(top,macs.toArray(new String[macs.size()]));
+    }
+
+    /**
+     * ranked coords, index 0 is the most likely
+     */
+    public static final class Result {
+	private final int loaded;
+	private final int[] cells;
+	private final int[] counts;
+
+	Result(int loaded, int[] cells, int[] counts) {
+	    this.loaded = loaded;
+	    this.cells = cells;
+	    this.counts = counts;
+	}
+
+	/** how many distinct keys of the macs are in the m8b, macs sharing a key count once */
+	public int loaded() {
+	    return loaded;
+	}
+
+	/** number of distinct coords */
+	public int size() {
+	    return cells.length;
+	}
+
+	/** cell id of the i-th coords, see mgrs.cellToBytes */
+	public int cell(int i) {
+	    return cells[i];
+	}
+
+	/** the i-th coords as its 9 character mgrs string */
+	public String coords(int i) {
+	    byte[] b = new byte[9];
+	    mgrs.cellToBytes(cells[i],b,0);
+	    return new String(b,StandardCharsets.US_ASCII);
+	}
+
+	/** hits on the i-th coords */
+	public int count(int i) {
+	    return counts[i];
+	}
+    }
+}
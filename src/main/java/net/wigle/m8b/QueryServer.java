@@ -0,0 +1,243 @@
+package net.wigle.m8b;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * keeps one m8b open and answers queries over http on the loopback interface.
+ *
+ *   GET  /query?mac=m1,m2,...   (or POST /query with macs separated by whitespace or commas)
+ *        -&gt; the same "loaded n" line and "coords count" ranking as m8b query
+ *           (&amp;top=n for just the n best coords)
+ *   GET  /stats
+ *        -&gt; request, error, throughput and latency counters (and key filter ones, see KeyFilter)
+ *
+ * a bad request gets a 400, an m8b that won't read a 500, both count as errors.
+ * requests are handled on a fixed pool, all sharing the reader.
+ */
+final class QueryServer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** largest request body we'll read */
+    private static final int MAXBODY = 1 << 20;
+
+    private final Query query;
+    private final KeyFilter filter;
+    private final long started = System.nanoTime();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder macs = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    /** query latencies, bucket i counts those under 2^i ns */
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+    QueryServer(M8bReader mjg) {
+	query = new Query(mjg);
+	filter = mjg.filter;
+    }
+
+    /**
+     * serve m8bFile on localhost:port with threads handlers, until killed
+     */
+    static void serve(String m8bFile, int port, int threads) throws Exception {
+	M8bReader mjg;
+	try {
+	    mjg = M8bReader.open(new File(m8bFile).toPath());
+	} catch (IOException e) {
+	    System.out.println(e.getMessage());
+	    return;
+	}
+	QueryServer qs = new QueryServer(mjg);
+
+	HttpServer hs = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),port),0);
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	hs.setExecutor(pool);
+	hs.createContext("/query",qs::query);
+	hs.createContext("/stats",qs::stats);
+	hs.start();
+
+	Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+	    hs.stop(0);
+	    pool.shutdown();
+	    System.out.print(qs.report());
+	    try {
+		mjg.close();
+	    } catch (IOException e) {
+		// going down anyway
+	    }
+	}));
+	System.out.println("serving "+m8bFile+" ("+mjg.size()+" records, version "+mjg.version+") on "+hs.getAddress()+" with "+threads+" threads");
+    }
+
+    void query(HttpExchange ex) throws IOException {
+	long t0 = System.nanoTime();
+	int code;
+	String answer;
+	try {
+	    List<String> ms = new ArrayList<>();
+	    int top = -1;
+	    String q = ex.getRequestURI().getRawQuery();
+	    if (q != null) {
+		for (String kv : q.split("&")) {
+		    if (kv.startsWith("mac=")) {
+			split(URLDecoder.decode(kv.substring(4),"UTF-8"),ms);
+		    } else if (kv.startsWith("top=")) {
+			top = Integer.parseInt(kv.substring(4));
+		    }
+		}
+	    }
+	    if ("POST".equals(ex.getRequestMethod())) {
+		split(body(ex.getRequestBody()),ms);
+	    }
+
+	    Query.Result res = query.rank(top,ms);
+
+	    StringBuilder sb = new StringBuilder();
+	    sb.append("loaded ").append(res.loaded()).append('\n');
+	    for (int i = 0; i < res.size(); i++) {
+		sb.append(res.coords(i)).append(' ').append(res.count(i)).append('\n');
+	    }
+	    macs.add(ms.size());
+	    code = 200;
+	    answer = sb.toString();
+	} catch (IOException|UncheckedIOException e) {
+	    // the m8b (or the request body) wouldn't read, that's on us
+	    errors.increment();
+	    code = 500;
+	    answer = e.getMessage()+"\n";
+	} catch (RuntimeException e) {
+	    // bad macs and the like
+	    errors.increment();
+	    code = 400;
+	    answer = e.getMessage()+"\n";
+	}
+	try {
+	    reply(ex,code,answer);
+	} finally {
+	    long t = System.nanoTime() - t0;
+	    requests.increment();
+	    nanos.add(t);
+	    buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(t));
+	}
+    }
+
+    void stats(HttpExchange ex) throws IOException {
+	reply(ex,200,report());
+    }
+
+    /**
+     * the counters as "name value" lines
+     */
+    String report() {
+	long n = requests.sum();
+	double up = (System.nanoTime() - started) / 1e9;
+	StringBuilder sb = new StringBuilder();
+	sb.append("requests ").append(n).append('\n');
+	sb.append("errors ").append(errors.sum()).append('\n');
+	sb.append("macs ").append(macs.sum()).append('\n');
+	sb.append(String.format("uptime_s %.1f\n",up));
+	sb.append(String.format("throughput_rps %.1f\n",n / up));
+	sb.append(String.format("latency_mean_us %.1f\n",n == 0 ? 0.0 : nanos.sum() / 1e3 / n));
+	sb.append("latency_p50_us ").append(percentile(n,0.50)).append('\n');
+	sb.append("latency_p99_us ").append(percentile(n,0.99)).append('\n');
+	sb.append("latency_p999_us ").append(percentile(n,0.999)).append('\n');
+	if (filter != null) {
+	    sb.append("filter_checks ").append(filter.checks.sum()).append('\n');
+	    sb.append("filter_rejects ").append(filter.rejects.sum()).append('\n');
+	}
+	return sb.toString();
+    }
+
+    /** upper bound in us of the bucket holding quantile p of n requests */
+    private long percentile(long n, double p) {
+	long want = (long)Math.ceil(n * p);
+	long seen = 0;
+	for (int i = 0; i < buckets.length(); i++) {
+	    seen += buckets.get(i);
+	    if (seen >= want && seen > 0) {
+		return (1L << i) / 1000;
+	    }
+	}
+	return 0;
+    }
+
+    private static void split(String s, List<String> ms) {
+	for (String m : s.split("[\\s,]+")) {
+	    if (!m.isEmpty()) {
+		ms.add(m);
+	    }
+	}
+    }
+
+    private static String body(InputStream in) throws IOException {
+	ByteArrayOutputStream bo = new ByteArrayOutputStream();
+	byte[] buf = new byte[4096];
+	int r;
+	while ((r = in.read(buf)) > 0) {
+	    bo.write(buf,0,r);
+	    if (bo.size() > MAXBODY) {
+		throw new IllegalArgumentException("request too large");
+	    }
+	}
+	return new String(bo.toByteArray(),UTF8);
+    }
+
+    private static void reply(HttpExchange ex, int code, String s) throws IOException {
+	byte[] b = s.getBytes(UTF8);
+	ex.getResponseHeaders().set("Content-Type","text/plain; charset=utf-8");
+	ex.sendResponseHeaders(code,b.length);
+	try (OutputStream os = ex.getResponseBody()) {
+	    os.write(b);
+	}
+    }
+}
@@ -0,0 +1,185 @@
+package net.wigle.m8b;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * lsd radix sort of packed records (see Records), ascending as signed longs.
+ *
+ * 8 passes of 8 bits, each a stable counting scatter between the array and a scratch
+ * array of the same size. a pass whose digit is the same for every record is skipped,
+ * which drops the top cell byte always and most key bytes when the slice is narrow.
+ * with threads &gt; 1 the counting and scattering of each pass is split into contiguous
+ * slices on the common pool. per slice offsets keep it stable, so the result is
+ * exactly what Arrays.sort gives.
+ */
+final class RadixSort {
+
+    private static final int BITS = 8;
+    private static final int RADIX = 1 << BITS;
+    private static final int PASSES = 64 / BITS;
+
+    /** below this many records splitting up a pass costs more than it saves */
+    static final int PARALLEL = 1 << 16;
+
+    private final int threads;
+    private long[] tmp;
+
+    /**
+     * capacity is the largest n sort() will see, the scratch array is allocated up front
+     */
+    RadixSort(int capacity, int threads) {
+	this.threads = Math.max(1,threads);
+	tmp = new long[capacity];
+    }
+
+    /**
+     * sort a[0..n)
+     */
+    void sort(long[] a, int n) {
+	if (n < 2) {
+	    return;
+	}
+	if (tmp.length < n) {
+	    tmp = new long[n];
+	}
+	final int parts = (threads > 1 && n >= PARALLEL) ? threads : 1;
+
+	// one read for every digit histogram, to find the passes we can skip
+	int[][] all = count(a,n,parts,-1);
+	long[] total = new long[PASSES*RADIX];
+	for (int[] c : all) {
+	    for (int i = 0; i < c.length; i++) {
+		total[i] += c[i];
+	    }
+	}
+
+	long[] src = a;
+	long[] dst = tmp;
+	for (int d = 0; d < PASSES; d++) {
+	    if (constant(total,d,n)) {
+		continue;
+	    }
+	    // a single slice is the whole array, its histogram doesn't change with the order
+	    int[][] counts = parts == 1 ? new int[][] {Arrays.copyOfRange(all[0],d*RADIX,(d+1)*RADIX)} : count(src,n,parts,d);
+	    scatter(src,dst,n,counts,d);
+	    long[] t = src;
+	    src = dst;
+	    dst = t;
+	}
+	if (src != a) {
+	    System.arraycopy(src,0,a,0,n);
+	}
+    }
+
+    /** digit d of v, with the sign flipped so unsigned digit order is signed long order */
+    private static int digit(long v, int d) {
+	return (int)(((v ^ Long.MIN_VALUE) >>> (d*BITS)) & (RADIX-1));
+    }
+
+    /** true if every one of the n records has the same digit d */
+    private static boolean constant(long[] total, int d, int n) {
+	for (int b = 0; b < RADIX; b++) {
+	    if (total[(d*RADIX)+b] == n) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * per slice histograms of a[0..n), of digit d, or of all digits (PASSES*RADIX) when d &lt; 0
+     */
+    private static int[][] count(long[] a, int n, int parts, int d) {
+	int[][] counts = new int[parts][];
+	IntStream ps = IntStream.range(0,parts);
+	if (parts > 1) {
+	    ps = ps.parallel();
+	}
+	ps.forEach(p -> {
+	    int lo = lo(n,parts,p);
+	    int hi = lo(n,parts,p+1);
+	    if (d >= 0) {
+		int[] c = new int[RADIX];
+		for (int i = lo; i < hi; i++) {
+		    c[digit(a[i],d)]++;
+		}
+		counts[p] = c;
+	    } else {
+		int[] c = new int[PASSES*RADIX];
+		for (int i = lo; i < hi; i++) {
+		    long v = a[i] ^ Long.MIN_VALUE;
+		    for (int j = 0; j < PASSES; j++) {
+			c[(j*RADIX) + (int)((v >>> (j*BITS)) & (RADIX-1))]++;
+		    }
+		}
+		counts[p] = c;
+	    }
+	});
+	return counts;
+    }
+
+    /**
+     * stable scatter of src[0..n) into dst by digit d, given the per slice counts of d
+     */
+    private static void scatter(long[] src, long[] dst, int n, int[][] counts, int d) {
+	int parts = counts.length;
+	int[][] offs = new int[parts][RADIX];
+	// bucket major, slice minor: slice p's b's land after every earlier slice's b's
+	int o = 0;
+	for (int b = 0; b < RADIX; b++) {
+	    for (int p = 0; p < parts; p++) {
+		offs[p][b] = o;
+		o += counts[p][b];
+	    }
+	}
+
+	IntStream ps = IntStream.range(0,parts);
+	if (parts > 1) {
+	    ps = ps.parallel();
+	}
+	ps.forEach(p -> {
+	    int[] off = offs[p];
+	    int hi = lo(n,parts,p+1);
+	    for (int i = lo(n,parts,p); i < hi; i++) {
+		long v = src[i];
+		dst[off[digit(v,d)]++] = v;
+	    }
+	});
+    }
+
+    /** start of slice p of n split parts ways */
+    private static int lo(int n, int parts, int p) {
+	return (int)(((long)n * p) / parts);
+    }
+}
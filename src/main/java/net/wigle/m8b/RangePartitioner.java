@@ -0,0 +1,313 @@
+package net.wigle.m8b;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import net.wigle.m8b.siphash.SipKey;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * splits keys into contiguous ranges, in unsigned key order, of about the same number of records.
+ *
+ * the split points are quantiles of a sample of the keys, and the number of ranges comes
+ * from the (estimated) record count and the sort budget, so every partition fits in the
+ * budget and they all sort in about the same time. partition i only holds keys below those
+ * of partition i+1, so the sorted partitions concatenate into a sorted whole.
+ */
+final class RangePartitioner {
+
+    /** keys sampled */
+    static final int SAMPLE = 1 << 16;
+
+    /** fewest and most partitions */
+    static final int MIN = 16;
+    static final int MAX = 4096;
+
+    /** sort memory per partition when there is no budget */
+    static final long TARGET = 64L << 20;
+
+    /** partition i holds unsigned keys in [splits[i-1],splits[i]), the first from 0, the last to 2^32 */
+    private final long[] splits;
+
+    /** keys the splits came from */
+    private int sampled;
+
+    /** records they stand for, -1 if unknown */
+    private long records = -1;
+
+    private RangePartitioner(long[] splits) {
+	this.splits = splits;
+    }
+
+    /** number of partitions */
+    int partitions() {
+	return splits.length + 1;
+    }
+
+    /** the partition of key */
+    int partition(int key) {
+	long k = key & 0xffffffffL;
+	int lo = 0;
+	int hi = splits.length;
+	while (lo < hi) {
+	    int mid = (lo + hi) >>> 1;
+	    if (splits[mid] <= k) {
+		lo = mid + 1;
+	    } else {
+		hi = mid;
+	    }
+	}
+	return lo;
+    }
+
+    /**
+     * how many partitions records records want, so each sorts within budget bytes (0 for no bound)
+     */
+    static int count(long records, long budget) {
+	long target = budget > 0 ? budget : TARGET;
+	// an eighth spare, the sample is only about right
+	long per = Math.max(1,(target - target / 8) / PartitionSorter.ENTRYCOST);
+	long n = (records + per - 1) / per;
+	return (int)Math.max(MIN,Math.min(MAX,n));
+    }
+
+    /**
+     * about parts partitions of equal weight by the first n of sample. keys too common to split
+     * leave fewer partitions. no sample at all splits the key space evenly.
+     */
+    static RangePartitioner of(int[] sample, int n, int parts) {
+	long[] s = new long[n];
+	for (int i = 0; i < n; i++) {
+	    s[i] = sample[i] & 0xffffffffL;
+	}
+	Arrays.sort(s);
+	long[] splits = new long[parts-1];
+	int m = 0;
+	for (int j = 1; j < parts; j++) {
+	    long split = n == 0 ? ((long)j << 32) / parts : s[(int)(((long)j * n) / parts)];
+	    if (split > 0 && (m == 0 || split > splits[m-1])) {
+		splits[m++] = split;
+	    }
+	}
+	return new RangePartitioner(Arrays.copyOf(splits,m));
+    }
+
+    /**
+     * partitions for the intermediate record files, keys sliced to slicebits, sized by budget
+     */
+    static RangePartitioner forStage(Path[] files, int slicebits, long budget) throws IOException {
+	long records = 0;
+	for (Path f : files) {
+	    records += Files.size(f) / Records.RECORDSIZE;
+	}
+	int[] keys = sampleStage(files,slicebits);
+	RangePartitioner rp = of(keys,keys.length,count(records,budget));
+	rp.sampled = keys.length;
+	rp.records = records;
+	return rp;
+    }
+
+    /**
+     * partitions for the mac|lat|lon lines of fromFile, sized by budget. when the records can't
+     * be estimated (gzipped) there are fallback of them.
+     */
+    static RangePartitioner forObservations(String fromFile, boolean tabs, long budget, int fallback) throws IOException {
+	Sample smp = sampleObservations(fromFile,tabs);
+	RangePartitioner rp = of(smp.keys,smp.n,smp.records < 0 ? fallback : count(smp.records,budget));
+	rp.sampled = smp.n;
+	rp.records = smp.records;
+	return rp;
+    }
+
+    /**
+     * about SAMPLE keys, evenly spaced over the intermediate record files, sliced to slicebits
+     */
+    static int[] sampleStage(Path[] files, int slicebits) throws IOException {
+	long[] offs = new long[files.length+1];
+	for (int i = 0; i < files.length; i++) {
+	    offs[i+1] = offs[i] + (Files.size(files[i]) / Records.RECORDSIZE);
+	}
+	long records = offs[files.length];
+	int n = (int)Math.min(SAMPLE,records);
+	int[] keys = new int[n];
+	long mask = (1L << slicebits) - 1;
+	ByteBuffer bb = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+	int f = -1;
+	FileChannel ch = null;
+	try {
+	    for (int s = 0; s < n; s++) {
+		long r = (s * records) / n;
+		while (r >= offs[f+1]) {
+		    f++;
+		    if (ch != null) {
+			ch.close();
+			ch = null;
+		    }
+		}
+		if (ch == null) {
+		    ch = FileChannel.open(files[f],StandardOpenOption.READ);
+		}
+		bb.clear();
+		long pos = (r - offs[f]) * Records.RECORDSIZE;
+		while (bb.hasRemaining() && ch.read(bb,pos+bb.position()) > 0) {
+		    // fill
+		}
+		bb.flip();
+		keys[s] = (int)(bb.getInt() & mask);
+	    }
+	} finally {
+	    if (ch != null) {
+		ch.close();
+	    }
+	}
+	return keys;
+    }
+
+    /** the keys of an observation sample and the records it suggests */
+    static final class Sample {
+	int[] keys;
+	int n;
+	/** estimated records in the whole file, -1 if it can't be told (gzipped) */
+	long records = -1;
+    }
+
+    /**
+     * about SAMPLE 32 bit keys of the mac|lat|lon lines of fromFile. a plain file is read at
+     * evenly spaced offsets, a gzipped one just from the front.
+     */
+    static Sample sampleObservations(String fromFile, boolean tabs) throws IOException {
+	Sample smp = new Sample();
+	smp.keys = new int[SAMPLE];
+	SipKey sipkey = new SipKey(new byte[16]);
+	ObservationParser op = new ObservationParser(tabs ? '\t' : '|');
+	Path p = new File(fromFile).toPath();
+	byte[] buf = new byte[1024];
+
+	if (fromFile.endsWith(".gz") || fromFile.endsWith(".GZ")) {
+	    try (InputStream in = new GZIPInputStream(Files.newInputStream(p),1 << 16)) {
+		int len = 0;
+		boolean header = true;
+		while (smp.n < SAMPLE) {
+		    int r = in.read(buf,len,buf.length-len);
+		    if (r < 0) {
+			break;
+		    }
+		    len += r;
+		    int ls = 0;
+		    for (int i = 0; i < len && smp.n < SAMPLE; i++) {
+			if (buf[i] == '\n') {
+			    if (!header) {
+				sampleLine(op,sipkey,buf,ls,i,smp);
+			    }
+			    header = false;
+			    ls = i + 1;
+			}
+		    }
+		    if (ls == 0 && len == buf.length) {
+			len = 0; // too long to be a line of ours
+		    } else {
+			System.arraycopy(buf,ls,buf,0,len-ls);
+			len -= ls;
+		    }
+		}
+	    }
+	    return smp;
+	}
+
+	try (FileChannel ch = FileChannel.open(p,StandardOpenOption.READ)) {
+	    long size = ch.size();
+	    long bytes = 0;
+	    int lines = 0;
+	    ByteBuffer bb = ByteBuffer.wrap(buf);
+	    for (int s = 0; s < SAMPLE; s++) {
+		long off = (s * size) / SAMPLE;
+		bb.clear();
+		while (bb.hasRemaining() && ch.read(bb,off+bb.position()) > 0) {
+		    // fill
+		}
+		int len = bb.position();
+		// the first whole line after off, the header is never one
+		int ls = 0;
+		while (ls < len && buf[ls] != '\n') {
+		    ls++;
+		}
+		ls++;
+		int le = ls;
+		while (le < len && buf[le] != '\n') {
+		    le++;
+		}
+		if (le >= len) {
+		    continue;
+		}
+		bytes += (le + 1) - ls;
+		lines++;
+		sampleLine(op,sipkey,buf,ls,le,smp);
+	    }
+	    if (lines > 0) {
+		smp.records = (size * lines) / bytes;
+	    }
+	}
+	return smp;
+    }
+
+    /** the key of buf[ls..le) if it is a line Ingest would keep */
+    private static void sampleLine(ObservationParser op, SipKey sipkey, byte[] buf, int ls, int le, Sample smp) {
+	if (le > ls && buf[le-1] == '\r') {
+	    le--;
+	}
+	if (le == ls) {
+	    return;
+	}
+	try {
+	    op.parse(buf,ls,le);
+	} catch (IllegalArgumentException e) {
+	    return; // Ingest will complain about it
+	}
+	if (-80 <= op.lat && op.lat <= 84) {
+	    smp.keys[smp.n++] = op.key(sipkey,32);
+	}
+    }
+
+    @Override
+    public String toString() {
+	return partitions()+" key range partitions from "+sampled+" sampled keys"+(records < 0 ? "" : " of ~"+records+" records");
+    }
+}
@@ -0,0 +1,120 @@
+package net.wigle.m8b;
+
+import java.nio.ByteBuffer;
+import net.wigle.m8b.geodesy.mgrs;
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * (key, mgrs) records packed into a single long for sorting.
+ *
+ * the high 32 bits are the key with its sign bit flipped, the low 32 are the mgrs cell id.
+ * plain signed long order is then unsigned key order, then mgrs string order, which is
+ * exactly RecComparator order, and two records are duplicates iff their longs are equal.
+ *
+ * on disk a record is LE int32 key and either the 9 byte mgrs string (version 2, and all
+ * intermediate files) or the LE int32 cell id (version 3, and inside version 4 blocks).
+ */
+final class Records {
+
+    /** on disk: LE int32 key, 9 byte mgrs string */
+    static final int RECORDSIZE = 4+9;
+
+    /** on disk: LE int32 key, LE int32 cell */
+    static final int PACKEDSIZE = 4+4;
+
+    private Records() {}
+
+    static long pack(int key, int cell) {
+	return ((long)(key ^ Integer.MIN_VALUE) << 32) | (cell & 0xffffffffL);
+    }
+
+    static int key(long rec) {
+	return ((int)(rec >>> 32)) ^ Integer.MIN_VALUE;
+    }
+
+    static int cell(long rec) {
+	return (int)rec;
+    }
+
+    /**
+     * read one on disk record from bb (LE), tmp is 9 bytes of scratch
+     */
+    static long get(ByteBuffer bb, byte[] tmp) {
+	int key = bb.getInt();
+	bb.get(tmp,0,9);
+	return pack(key,mgrs.cellFromBytes(tmp,0));
+    }
+
+    /**
+     * write rec to bb (LE) in on disk form, tmp is 9 bytes of scratch
+     */
+    static void put(ByteBuffer bb, long rec, byte[] tmp) {
+	mgrs.cellToBytes(cell(rec),tmp,0);
+	bb.putInt(key(rec)).put(tmp,0,9);
+    }
+
+    /**
+     * read one version 3 record from bb (LE)
+     */
+    static long getPacked(ByteBuffer bb) {
+	int key = bb.getInt();
+	return pack(key,bb.getInt());
+    }
+
+    /**
+     * write rec to bb (LE) in version 3 form
+     */
+    static void putPacked(ByteBuffer bb, long rec) {
+	bb.putInt(key(rec)).putInt(cell(rec));
+    }
+
+    /** coordsize of an m8b version */
+    static int coordsize(int version) {
+	return version >= 3 ? 4 : 9;
+    }
+
+    /** record size of an m8b version */
+    static int size(int version) {
+	return 4 + coordsize(version);
+    }
+
+    /**
+     * write rec to bb in the form of m8b version, tmp is 9 bytes of scratch
+     */
+    static void put(ByteBuffer bb, long rec, int version, byte[] tmp) {
+	if (version == 3) {
+	    putPacked(bb,rec);
+	} else {
+	    put(bb,rec,tmp);
+	}
+    }
+}
@@ -0,0 +1,508 @@
+package net.wigle.m8b;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+import net.wigle.m8b.geodesy.mgrs;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * dataset stats over intermediate stage files, on flat int arrays.
+ *
+ * every stage file is read on its own thread into a key column and a coords column
+ * (cell ids, see mgrs.toCell). the columns are sorted and keys and coords are counted
+ * as runs of equal values, rather than through a map entry and a String per record.
+ */
+final class Score {
+
+    private static final int RECORDSIZE = 4+9;
+
+    /** what reading a stage file gathers on the side */
+    private static final class Side {
+	/** records per zone+band, keyed by the first 3 mgrs bytes */
+	final CellHistogram dense = new CellHistogram(64);
+	/** records and local id per coords that have no cell id (not a 1km mgrs square) */
+	final Map<String,int[]> odd = new HashMap<>();
+    }
+
+    /** a stage location read into columns, keys stay in read order */
+    private static final class Columns {
+	int records;
+	/** records of stage file f are [offs[f],offs[f+1]) */
+	int[] offs;
+	int[] keys;
+	int[] cells;
+	Side[] sides;
+    }
+
+    private Score() {}
+
+    /**
+     * read every stage file under stageLoc into its own stretch of the columns, in parallel
+     */
+    private static Columns columns(String stageLoc) throws IOException {
+	List<Path> files = new ArrayList<>();
+	try (DirectoryStream<Path> stream = Files.newDirectoryStream(new File(stageLoc).toPath(), "stage_*")) {
+	    for ( Path entry : stream ) {
+		files.add(entry);
+	    }
+	}
+
+	long[] offs = new long[files.size()+1];
+	for (int i = 0; i < files.size(); i++) {
+	    offs[i+1] = offs[i] + (Files.size(files.get(i)) / RECORDSIZE);
+	}
+	if (offs[files.size()] > Integer.MAX_VALUE - 8) {
+	    throw new IOException("too many records: "+offs[files.size()]);
+	}
+	Columns col = new Columns();
+	col.records = (int)offs[files.size()];
+	col.offs = new int[offs.length];
+	for (int i = 0; i < offs.length; i++) {
+	    col.offs[i] = (int)offs[i];
+	}
+	col.keys = new int[col.records];
+	col.cells = new int[col.records];
+	col.sides = new Side[files.size()];
+	try {
+	    IntStream.range(0,col.sides.length).parallel().forEach((i)->{
+		try {
+		    col.sides[i] = read(files.get(i),col.keys,col.cells,(int)offs[i],(int)offs[i+1]);
+		} catch (IOException e) {
+		    throw new UncheckedIOException(e);
+		}
+		System.out.print('.');
+	    });
+	} catch (UncheckedIOException e) {
+	    throw e.getCause();
+	}
+	return col;
+    }
+
+    /**
+     * read multiple file intermediate m8b data at stageLoc
+     * establish and report stats on the dataset: key collisions, the most used keys and
+     * a world 100k density map.
+     */
+    static void score(String stageLoc) throws Exception {
+	Columns col = columns(stageLoc);
+	int records = col.records;
+	int[] keys = col.keys;
+	Side[] sides = col.sides;
+
+	CellHistogram dense = new CellHistogram(64);
+	Map<String,int[]> odd = new HashMap<>();
+	for (Side side : sides) {
+	    int[][] d = side.dense.top(-1);
+	    for (int i = 0; i < d[0].length; i++) {
+		dense.add(d[0][i],d[1][i]);
+	    }
+	    for (Map.Entry<String,int[]> me : side.odd.entrySet()) {
+		odd.computeIfAbsent(me.getKey(),(k)->new int[1])[0] += me.getValue()[0];
+	    }
+	}
+
+	// coords are runs of equal cell ids, the odd ones are negative and counted on the side
+	int[] cells = col.cells;
+	col.cells = null; // dropped once counted
+	Arrays.parallelSort(cells);
+	int coords = odd.size();
+	int cmax = 0;
+	for (int i = 0; i < records; ) {
+	    int j = i + 1;
+	    while (j < records && cells[j] == cells[i]) {
+		j++;
+	    }
+	    if (cells[i] >= 0) {
+		coords++;
+		cmax = Math.max(cmax,(j-i)+1); // +1, the old coord lists led with their index
+	    }
+	    i = j;
+	}
+	for (int[] v : odd.values()) {
+	    cmax = Math.max(cmax,v[0]+1);
+	}
+	cells = null;
+
+	// and keys are runs of equal keys
+	int[] hkeys = keys.clone();
+	Arrays.parallelSort(hkeys);
+	int hashes = 0;
+	for (int i = 0; i < records; i++) {
+	    if (i == 0 || hkeys[i] != hkeys[i-1]) {
+		hashes++;
+	    }
+	}
+	int[] counts = new int[hashes];
+	int h = -1;
+	for (int i = 0; i < records; i++) {
+	    if (i == 0 || hkeys[i] != hkeys[i-1]) {
+		hkeys[++h] = hkeys[i];
+	    }
+	    counts[h]++;
+	}
+
+	System.out.println("\nread:"+records+" hashes:"+hashes+" cmax:"+cmax+" collisions:"+(records-hashes)+" coords:"+coords);
+
+	for (int k : top(counts,hashes,10)) {
+	    System.out.println(hkeys[k]+" = "+counts[k]);
+	}
+
+	densityMap(dense);
+    }
+
+    /**
+     * read multiple file intermediate m8b data at stageLoc.
+     * this needs to be run on the already deduped stage data.
+     * establish and report stats on the dataset, including the dominates relation
+     * between coords (see Dominance) and the coords that dominate the most others.
+     */
+    static void score2(String stageLoc) throws Exception {
+	Columns col = columns(stageLoc);
+	int records = col.records;
+	int[] keys = col.keys;
+	int[] cells = col.cells;
+
+	// coords without a cell id go above the real ones, in string order
+	TreeMap<String,Integer> oddIds = new TreeMap<>();
+	for (Side side : col.sides) {
+	    for (String name : side.odd.keySet()) {
+		oddIds.put(name,0);
+	    }
+	}
+	int nodd = 0;
+	for (Map.Entry<String,Integer> me : oddIds.entrySet()) {
+	    me.setValue(nodd++);
+	}
+	for (int f = 0; f < col.sides.length; f++) {
+	    Side side = col.sides[f];
+	    if (side.odd.isEmpty()) {
+		continue;
+	    }
+	    int[] local = new int[side.odd.size()];
+	    for (Map.Entry<String,int[]> me : side.odd.entrySet()) {
+		local[me.getValue()[1]] = mgrs.ALLCELLS + oddIds.get(me.getKey());
+	    }
+	    for (int i = col.offs[f]; i < col.offs[f+1]; i++) {
+		if (cells[i] < 0) {
+		    cells[i] = local[-1 - cells[i]];
+		}
+	    }
+	}
+
+	// coords are numbered by first sighting, in place
+	CellHistogram ids = new CellHistogram(1 << 16);
+	int coords = 0;
+	int[] coordCell = new int[1024];
+	for (int i = 0; i < records; i++) {
+	    int c = ids.get(cells[i]);
+	    if (c == 0) {
+		c = ++coords;
+		ids.add(cells[i],c);
+		if (coords > coordCell.length) {
+		    coordCell = Arrays.copyOf(coordCell,coordCell.length*2);
+		}
+		coordCell[c-1] = cells[i];
+	    }
+	    cells[i] = c - 1;
+	}
+	ids = null;
+
+	// and keys by their rank, in place
+	int[] hkeys = keys.clone();
+	Arrays.parallelSort(hkeys);
+	int hashes = 0;
+	for (int i = 0; i < records; i++) {
+	    if (i == 0 || hkeys[i] != hkeys[i-1]) {
+		hkeys[hashes++] = hkeys[i];
+	    }
+	}
+	final int[] distinct = hkeys;
+	final int nkeys = hashes;
+	IntStream.range(0,records).parallel().forEach((i)->{
+	    keys[i] = Arrays.binarySearch(distinct,0,nkeys,keys[i]);
+	});
+	hkeys = null;
+
+	Dominance g = new Dominance(keys,cells,records,hashes,coords);
+	col.keys = null;
+	col.cells = null;
+	System.out.println("\nread:"+records+" hashes:"+hashes+" max:"+g.maxKeyRecords()+" cmax:"+(g.maxCoordRecords()+1)+" coords:"+coords);
+
+	// the walk order only decides the order pairs are found in, first sighting will do
+	int[] order = new int[coords];
+	for (int c = 0; c < coords; c++) {
+	    order[c] = c;
+	}
+
+	// chop wood cary water
+	Dominance.Walk dw = new Dominance.Walk(g,order,Dominance.MINRECORDS);
+	int[] pairs = dw.run(10000);
+	System.out.println(dw);
+
+	// dominated count per coord
+	int[] dominated = new int[coords];
+	for (int p = 0; p < pairs.length; p += 2) {
+	    dominated[pairs[p]]++;
+	}
+
+	int dominating = 0;
+	int dmax = 0;
+	for (int c = 0; c < coords; c++) {
+	    if (dominated[c] > 0) {
+		dominating++;
+		dmax = Math.max(dmax,dominated[c]);
+	    }
+	}
+	if (dominating == 0) {
+	    System.out.println("there were no dominating coordinates");
+	    return;
+	}
+	System.out.println("there were "+dominating+" dominating coordinates, dmax:"+dmax);
+
+	for (int c : topDominating(dominated,coordCell,dominating,10)) {
+	    System.out.println(c+" = "+dominated[c]);
+	}
+    }
+
+    /**
+     * the n coords that dominate the most others, most first, ties by ascending cell id
+     */
+    private static int[] topDominating(int[] dominated, int[] coordCell, int dominating, int n) {
+	n = Math.min(n,dominating);
+	// the n-th highest count, anything below can't make it
+	int dmax = 0;
+	for (int d : dominated) {
+	    dmax = Math.max(dmax,d);
+	}
+	int[] counts = new int[dmax+1];
+	for (int d : dominated) {
+	    counts[d]++;
+	}
+	int floor = dmax; // at least 1, there are n dominating coords
+	for (int seen = counts[floor]; seen < n; seen += counts[floor]) {
+	    floor--;
+	}
+
+	int m = 0;
+	for (int c = 0; c < dominated.length; c++) {
+	    if (dominated[c] >= floor) {
+		m++;
+	    }
+	}
+	int[] cand = new int[m];
+	m = 0;
+	for (int c = 0; c < dominated.length; c++) {
+	    if (dominated[c] >= floor) {
+		cand[m++] = c;
+	    }
+	}
+
+	// count down, then cell up. n is small, just pick them out.
+	boolean[] taken = new boolean[m];
+	int[] top = new int[n];
+	for (int r = 0; r < n; r++) {
+	    int best = -1;
+	    for (int i = 0; i < m; i++) {
+		if (taken[i]) {
+		    continue;
+		}
+		if (best < 0 || dominated[cand[i]] > dominated[cand[best]]
+		    || (dominated[cand[i]] == dominated[cand[best]] && coordCell[cand[i]] < coordCell[cand[best]])) {
+		    best = i;
+		}
+	    }
+	    taken[best] = true;
+	    top[r] = cand[best];
+	}
+	return top;
+    }
+
+    /**
+     * indexes of the n highest of counts[0..hashes), most first, ties by ascending index
+     * (the keys are sorted, so that is ascending key)
+     */
+    static int[] top(int[] counts, int hashes, int n) {
+	n = Math.min(n,hashes);
+	if (n == 0) {
+	    return new int[0];
+	}
+	// the n-th highest count, anything below can't make it
+	int[] heap = Arrays.copyOf(counts,n);
+	Arrays.sort(heap);
+	for (int i = n; i < hashes; i++) {
+	    if (counts[i] > heap[0]) {
+		heap[0] = counts[i];
+		for (int j = 0; ; ) { // sift down
+		    int c = (2*j)+1;
+		    if (c >= n) {
+			break;
+		    }
+		    if (c+1 < n && heap[c+1] < heap[c]) {
+			c++;
+		    }
+		    if (heap[c] >= heap[j]) {
+			break;
+		    }
+		    int t = heap[c];
+		    heap[c] = heap[j];
+		    heap[j] = t;
+		    j = c;
+		}
+	    }
+	}
+	int floor = heap[0];
+
+	int m = 0;
+	for (int i = 0; i < hashes; i++) {
+	    if (counts[i] >= floor) {
+		m++;
+	    }
+	}
+	int[] cand = new int[m];
+	m = 0;
+	for (int i = 0; i < hashes; i++) {
+	    if (counts[i] >= floor) {
+		cand[m++] = i;
+	    }
+	}
+
+	// count down, then index up. n is small, just pick them out.
+	boolean[] taken = new boolean[m];
+	int[] top = new int[n];
+	for (int r = 0; r < n; r++) {
+	    int best = -1;
+	    for (int i = 0; i < m; i++) {
+		if (taken[i]) {
+		    continue;
+		}
+		if (best < 0 || counts[cand[i]] > counts[cand[best]]) {
+		    best = i;
+		}
+	    }
+	    taken[best] = true;
+	    top[r] = cand[best];
+	}
+	return top;
+    }
+
+    /**
+     * read the stage file's records into keys[from..to) and cells[from..to).
+     * coords without a cell id get a negative one, unique within the file.
+     */
+    private static Side read(Path entry, int[] keys, int[] cells, int from, int to) throws IOException {
+	Charset utf8  = Charset.forName("UTF-8");
+	Side side = new Side();
+	byte[] mstr = new byte[9];
+	int n = from;
+
+	ByteBuffer ib = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN); // screw you, java
+	try (SeekableByteChannel in = Files.newByteChannel(entry, EnumSet.of(StandardOpenOption.READ))) {
+	    int read = in.read(ib);
+	    while (read > 0) {
+		ib.flip();
+		while ( ib.remaining() >= RECORDSIZE && n < to ) {
+		    keys[n] = ib.getInt();
+		    ib.get(mstr,0,mstr.length);
+		    try {
+			cells[n] = mgrs.cellFromBytes(mstr,0);
+		    } catch (IllegalArgumentException iae) {
+			// -1 - local id, see oddIds
+			int[] v = side.odd.computeIfAbsent(new String(mstr,0,9,utf8),(k)->new int[]{0,side.odd.size()});
+			v[0]++;
+			cells[n] = -1 - v[1];
+		    }
+		    side.dense.add(((mstr[0] & 0xff) << 16) | ((mstr[1] & 0xff) << 8) | (mstr[2] & 0xff));
+		    n++;
+		}
+		ib.compact(); // partial reads.
+		read = in.read(ib);
+	    }
+	}
+	if (n != to) {
+	    throw new IOException(entry+" changed while it was read");
+	}
+	return side;
+    }
+
+    /**
+     * world map of records per mgrs zone and band, 01W -> 60W down to 01C -> 60C
+     */
+    private static void densityMap(CellHistogram dense) {
+	int dmax = dense.size() == 0 ? 0 : dense.top(1)[1][0];
+	double dec = ((dmax+1)/10.0);
+	String[] zones = new String[]{"01", "02", "03", "04", "05", "06", "07", "08", "09", "10", "11", "12", "13", "14", "15", "16", "17", "18", "19", "20", "21", "22", "23", "24", "25", "26", "27", "28", "29", "30", "31", "32", "33", "34", "35", "36", "37", "38", "39", "40", "41", "42", "43", "44", "45", "46", "47", "48", "49", "50", "51", "52", "53", "54", "55", "56", "57", "58", "59", "60" };
+	String[] bands = new String[]{ "W","V","U","T","S","R","Q","P","O","N","M","L","K","J","I","H","G","F","E","D","C"};
+	char[] fill = {' ','\u25AB','\u25AA','\u25A1','\u25F0','\u25F3','\u25F2','\u25F1','\u25EB','\u25A4','\u25EA'};
+	// walk the dense map 01W -> 60W \n 01V -> 60V
+	System.out.print("world 100k density scale: 0[");
+	for ( char c : fill ) {
+	    System.out.print(c);
+	    System.out.print(' ');
+	}
+	System.out.println("]10 ("+dmax+")");
+	System.out.println(" 01                                                          60");
+	System.out.println(" +------------------------------------------------------------+");
+	for (int b = 0; b < bands.length; b++) {
+	    System.out.print((b==0||b==bands.length-1)?bands[b] : ' ');
+	    System.out.print('|');
+	    for (int z = 0;z<zones.length;z++) {
+		int d = dense.get((zones[z].charAt(0) << 16) | (zones[z].charAt(1) << 8) | bands[b].charAt(0));
+		if (d == 0){
+		    System.out.print(fill[0]); // nothing!
+		} else {
+		    int v = (int)(d/dec)+1;
+		    System.out.print(fill[v]);
+		}
+	    }
+	    System.out.println("|");
+	}
+	System.out.println(" +------------------------------------------------------------+");
+    }
+}
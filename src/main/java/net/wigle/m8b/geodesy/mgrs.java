@@ -118,6 +118,20 @@ public final class mgrs {
 
     }
 
+    /**
+     * inverse of populateBytes, for the 9 bytes at b[off]
+     */
+    public static mgrs fromBytes(byte[] b, int off){
+	mgrs m = new mgrs();
+	m.zone = ((b[off]-'0')*10) + (b[off+1]-'0');
+	m.band = (char)b[off+2];
+	m.e100k = (char)b[off+3];
+	m.n100k = (char)b[off+4];
+	m.easting = (((b[off+5]-'0')*10) + (b[off+6]-'0')) * 1000;
+	m.northing = (((b[off+7]-'0')*10) + (b[off+8]-'0')) * 1000;
+	return m;
+    }
+
     private static byte[] _z = new byte[]{(byte)0x30,(byte)0x31,(byte)0x32,(byte)0x33,(byte)0x34,(byte)0x35,(byte)0x36,(byte)0x37,(byte)0x38,(byte)0x39};
     
     // first digit as a byte
@@ -202,20 +216,114 @@ public final class mgrs {
     
     
     /*
-     * int encoding of 1km square (21 bits)
-     * zone | band | e100k | n100k
-     * zone: 60 (6 bits)
-     * band: 20 (5 bits)
-     *
-     * e: 24 (5 bits)
-     * n: 20 (5 bits)  
+     * int encoding of 1km square, a cell id.
+     * mixed radix, most significant first, so cell order is the same as populateBytes order:
      *
-     * easting: 7 bits
-     * northing: 7 bits
+     * zone-1: 61
+     * band: 20 (C..X)
+     * e100k: 8 (column within the zone's letter set)
+     * n100k: 20 (A..V)
+     * easting: 100
+     * northing: 100
      *
-     * 21+14 = 36 -> ceil() = 40 bits. 5 bytes.
+     * 61*20*8*20*100*100 = 1,952,000,000 < 2^31, so a cell id is never negative.
+     * zone 61 isn't a real zone, it is where a lon at (or rounding up to) 180 projects to.
+     * those squares still have strings, so their ids are the ones above CELLS.
      *
      * string version is 9 bytes. 18SVK8924
      */
-    
+
+    private static final String bandLetters = "CDEFGHJKLMNPQRSTUVWX";
+    private static final String rowLetters = "ABCDEFGHJKLMNPQRSTUV";
+
+    /** number of distinct cell ids in zones 1..60 */
+    public static final int CELLS = 60*20*8*20*100*100;
+
+    /** number of distinct cell ids, zone 61 included */
+    public static final int ALLCELLS = 61*20*8*20*100*100;
+
+    /**
+     * cell id of this square
+     */
+    public int toCell(){
+	return cell(zone,band,e100k,n100k,canon(easting),canon(northing));
+    }
+
+    /**
+     * cell id of the 9 mgrs bytes at b[off], as written by populateBytes
+     */
+    public static int cellFromBytes(byte[] b, int off){
+	int zone = digits(b[off],b[off+1]);
+	int e = digits(b[off+5],b[off+6]);
+	int n = digits(b[off+7],b[off+8]);
+	return cell(zone,(char)b[off+2],(char)b[off+3],(char)b[off+4],e,n);
+    }
+
+    /**
+     * write the 9 mgrs bytes for cell at b[off], the inverse of cellFromBytes
+     */
+    public static void cellToBytes(int cell, byte[] b, int off){
+	if (cell < 0 || cell >= ALLCELLS) {
+	    throw new IllegalArgumentException("bad cell "+cell);
+	}
+	int n = cell % 100; cell /= 100;
+	int e = cell % 100; cell /= 100;
+	int row = cell % 20; cell /= 20;
+	int col = cell % 8; cell /= 8;
+	int band = cell % 20; cell /= 20;
+	int zone = cell + 1;
+
+	b[off] = z1(zone);
+	b[off+1] = z2(zone);
+	b[off+2] = (byte)bandLetters.charAt(band);
+	b[off+3] = (byte)e100kLetters[(zone-1)%3].charAt(col);
+	b[off+4] = (byte)rowLetters.charAt(row);
+	b[off+5] = z1(e);
+	b[off+6] = z2(e);
+	b[off+7] = z1(n);
+	b[off+8] = z2(n);
+    }
+
+    /**
+     * cell id of the square holding utm easting/northing in zone and latitude band
+     * (an index into bandLetters), the same as fromUtm(u).toCell()
+     */
+    static int toCell(int zone, int band, double easting, double northing){
+	if (zone < 1 || zone > 61) {
+	    throw new IllegalArgumentException("not a 1km mgrs square");
+	}
+	int col = (int)Math.floor( easting/ _100k ) - 1;
+	if (col < 0 || col > 7) {
+	    // as fromUtm's charAt would
+	    throw new StringIndexOutOfBoundsException(col);
+	}
+	int row = (int)(Math.floor(northing / _100k) % 20);
+	// odd zones start at A, even ones at F
+	if ((zone-1)%2 != 0) {
+	    row = (row + 5) % 20;
+	}
+	int e = canon(easting % _100k);
+	int n = canon(northing % _100k);
+	return ((((((((zone-1)*20)+band)*8+col)*20)+row)*100+e)*100)+n;
+    }
+
+    private static int cell(int zone, char band, char e100k, char n100k, int e, int n){
+	if (zone < 1 || zone > 61 || e < 0 || e > 99 || n < 0 || n > 99) {
+	    throw new IllegalArgumentException("not a 1km mgrs square");
+	}
+	int b = bandLetters.indexOf(band);
+	int col = e100kLetters[(zone-1)%3].indexOf(e100k);
+	int row = rowLetters.indexOf(n100k);
+	if (b < 0 || col < 0 || row < 0) {
+	    throw new IllegalArgumentException("not a 1km mgrs square");
+	}
+	return ((((((((zone-1)*20)+b)*8+col)*20)+row)*100+e)*100)+n;
+    }
+
+    private static int digits(byte hi, byte lo){
+	if (hi < '0' || hi > '9' || lo < '0' || lo > '9') {
+	    throw new IllegalArgumentException("not a 1km mgrs square");
+	}
+	return ((hi-'0')*10) + (lo-'0');
+    }
 }
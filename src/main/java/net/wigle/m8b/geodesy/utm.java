@@ -170,6 +170,119 @@ public class utm {
     }
 
 
+    /**
+     * cell id (see mgrs.toCell) of lat/lon, the same as
+     * mgrs.fromUtm(fromLatLon(lat,lon)).toCell() but without the objects, the convergence
+     * and the scale. the easting/northing math is fromLatLon's, step for step, so the
+     * result is bit for bit the same. keep the two in step.
+     */
+    public static int toCell(double lat, double lon) {
+	return toCell(lat,lon,null);
+    }
+
+    /**
+     * as toCell(lat,lon), and the easting and northing go to en[0] and en[1] if en isn't null
+     */
+    public static int toCell(double lat, double lon, double[] en) {
+        if (Double.isNaN(lat) || Double.isNaN(lon)){ throw new ArithmeticException("Invalid point");}
+        if (!(-80<=lat && lat<=84)){ throw new ArithmeticException("Outside UTM limits");}
+
+        int zone = (int)(Math.floor((lon+180)/6) + 1); // longitudinal zone
+        double λ0 = Math.toRadians((zone-1)*6 - 180 + 3); // longitude of central meridian
+
+	// ---- handle Norway/Svalbard exceptions, as fromLatLon
+	int band = (int)Math.floor((lat/8)+10);
+	char latBand = mgrsLatBands.charAt(band);
+	if (zone==31 && latBand=='V' && lon>= 3) { zone++; λ0 += sixRadians; }
+	if (zone==32 && latBand=='X' && lon<  9) { zone--; λ0 -= sixRadians; }
+	if (zone==32 && latBand=='X' && lon>= 9) { zone++; λ0 += sixRadians; }
+	if (zone==34 && latBand=='X' && lon< 21) { zone--; λ0 -= sixRadians; }
+	if (zone==34 && latBand=='X' && lon>=21) { zone++; λ0 += sixRadians; }
+	if (zone==36 && latBand=='X' && lon< 33) { zone--; λ0 -= sixRadians; }
+	if (zone==36 && latBand=='X' && lon>=33) { zone++; λ0 += sixRadians; }
+
+	double φ = Math.toRadians(lat);
+	double λ = Math.toRadians(lon) - λ0;
+
+	double cosλ = Math.cos(λ);
+	double sinλ = Math.sin(λ);
+
+	double τ = Math.tan(φ);
+	double σ = Math.sinh(e*atanh(e*τ/Math.sqrt(1+τ*τ)));
+
+	double τʹ = τ*Math.sqrt(1+σ*σ) - σ*Math.sqrt(1+τ*τ);
+
+	double ξʹ = Math.atan2(τʹ, cosλ);
+	double ηʹ = asinh(sinλ / Math.sqrt(τʹ*τʹ + cosλ*cosλ));
+
+	double ξ = ξʹ;
+	for (int j=1; j<=6; j++){ ξ += α[j] * Math.sin(2*j*ξʹ) * Math.cosh(2*j*ηʹ);}
+
+	double η = ηʹ;
+	for (int j=1; j<=6; j++){ η += α[j] * Math.cos(2*j*ξʹ) * Math.sinh(2*j*ηʹ);}
+
+	double x = k0 * A * η;
+	double y = k0 * A * ξ;
+
+	x = x + falseEasting;
+	if (y < 0) {
+	    y = y + falseNorthing;
+	}
+	if (en != null) {
+	    en[0] = x;
+	    en[1] = y;
+	}
+
+	// X is repeated for 80-84°N, cells only have the one
+	return mgrs.toCell(zone,Math.min(band,19),x,y);
+    }
+
+    /**
+     * toCell of lat[i]/lon[i] into cells[i] for i in [0,n). points outside the UTM
+     * limits (or with a NaN lat) get -1. returns how many did.
+     */
+    public static int toCells(double[] lat, double[] lon, int n, int[] cells) {
+	int outside = 0;
+	for (int i = 0; i < n; i++) {
+	    if (!(-80<=lat[i] && lat[i]<=84)) {
+		cells[i] = -1;
+		outside++;
+		continue;
+	    }
+	    cells[i] = toCell(lat[i],lon[i]);
+	}
+	return outside;
+    }
+
+    /**
+     * as toCells, but the 9 mgrs bytes of point i (as mgrs.populateBytes) go to out[i*9],
+     * points outside the UTM limits are left alone. returns how many there were.
+     */
+    public static int toBytes(double[] lat, double[] lon, int n, byte[] out) {
+	int outside = 0;
+	byte[] tmp = null;
+	for (int i = 0; i < n; i++) {
+	    if (!(-80<=lat[i] && lat[i]<=84)) {
+		outside++;
+		continue;
+	    }
+	    int cell;
+	    try {
+		cell = toCell(lat[i],lon[i]);
+	    } catch (IllegalArgumentException iae) {
+		// no cell id for it, it still gets the string populateBytes would write
+		if (tmp == null) {
+		    tmp = new byte[9];
+		}
+		mgrs.fromUtm(fromLatLon(lat[i],lon[i])).populateBytes(tmp);
+		System.arraycopy(tmp,0,out,i*9,9);
+		continue;
+	    }
+	    mgrs.cellToBytes(cell,out,i*9);
+	}
+	return outside;
+    }
+
     public static double atanh(double x){
 	return 0.5 * Math.log((1+x)/(1-x));
     }
@@ -1,10 +1,13 @@
 package net.wigle.m8b;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.nio.charset.Charset;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.ByteBuffer;
@@ -15,23 +18,17 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.concurrent.RecursiveTask;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ForkJoinTask;
-import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import net.wigle.m8b.siphash.SipHash;
 import net.wigle.m8b.siphash.SipKey;
 import net.wigle.m8b.geodesy.utm;
@@ -78,10 +75,38 @@ public final class m8b {
      * compact  - sort and reduce stage files without keying
      * combine  - assemble reduced files, produce m8b
      * dumpi    - dump intermediate file to stdout
-     * query    - read entire m8b query resulting datastructure for macs
+     * query    - binary search m8b inplace for macs, return query results
      * scan     - read data from m8b based on macs, return query results
+     * serve    - keep an m8b open, answer queries over http on localhost (see QueryServer)
+     * batch    - query many mac sets (one per line) in one pass over the m8b
+     * compare  - size and ranking of one m8b against another over a file of mac sets, say a pruned one
      * score    - read stage files, establish stats
      * score2   - read stage files, establish other stats
+     * unf      - read in mac|lat|lon text file, stage, reduce and combine into a 32 bit m8b
+     * convert  - rewrite an m8b as another version (2: 9 byte mgrs strings, 3: 4 byte cell ids,
+     *            4: deflated blocks of cell ids)
+     * filter   - build the key filter sidecar of an m8b, see KeyFilter
+     * bench    - time new vs old hot paths on this box
+     *
+     * query/scan/serve/batch answer with "loaded n", n the distinct keys of the macs found in the m8b
+     * (macs sharing a key count once, and each one still adds its hits), then "coords count" lines.
+     *
+     * -p n runs the text parsing of generate/stage/restage/unf and the sorting of
+     *      generate/restage/reduce/unf on n threads, output is unchanged.
+     *      the file is read, parsed and written by separate stages, the ingest line times each.
+     *      combine to a .gz deflates on n threads.
+     * -m mb bounds the sort memory of restage/reduce/unf, larger partitions are sorted on disk.
+     *      the runs are merged in passes of at most 64, their buffers counted in the bound.
+     *      with -p n, n partitions are sorted at once, as long as they fit in it together.
+     *      the partitions are key ranges picked from a sample of the keys, enough of them to fit it.
+     * -b mb sizes the direct write buffer of each stage/restage/reduce/unf partition, see PartitionWriter.
+     *      default is 1MB, either way they shrink until they all fit in 64MB.
+     * -w writes the partitions behind, on their own thread, in gathering writes.
+     * -v 3 makes generate/combine/unf write version 3 (8 byte records), default is version 2.
+     * --top n limits query/scan/batch to the n best coords of each query, default is all of them.
+     *        for compare it is how many coords of each ranking are matched up, default 10.
+     * --prune all|near:n makes combine drop the coords that a coord with more records dominates, see Prune.
+     * --filter rate makes generate/combine/unf build a key filter sidecar with that false positive rate.
      */
     public static void main(String[] argv) throws Exception {
 
@@ -93,22 +118,23 @@ public final class m8b {
 	switch(cmd) {
 	case "generate": {
 	    System.out.println("do generate read "+argv[1]+" write "+argv[2]+" slice "+argv[3]);
-	    boolean tabs = (argv.length > 4 && "-t".equals(argv[4]));
-	    generate(argv[1],argv[2],Integer.parseInt(argv[3]),tabs);
+	    boolean tabs = hasFlag(argv,4,"-t");
+	    generate(argv[1],argv[2],Integer.parseInt(argv[3]),tabs,intOpt(argv,4,"-p",1),version(argv,4));
+	    keyFilter(argv[2],strOpt(argv,4,"--filter",null));
 	    break;
 	}
 	    
 	case "stage":{
 	    System.out.println("do stage read "+argv[1]+" write "+argv[2]);
-	    boolean tabs = (argv.length > 3 && "-t".equals(argv[3]));
-	    stage(argv[1],argv[2],tabs);
+	    boolean tabs = hasFlag(argv,3,"-t");
+	    stage(argv[1],argv[2],tabs,intOpt(argv,3,"-p",1),intOpt(argv,3,"-b",0)<<20,hasFlag(argv,3,"-w"));
 	    break;
 	}
 
 	case "restage":{
 	    System.out.println("do restage read "+argv[1]+" write "+argv[2]);
-	    boolean tabs = (argv.length > 3 && "-t".equals(argv[3]));
-	    restage(argv[1],argv[2],tabs);
+	    boolean tabs = hasFlag(argv,3,"-t");
+	    restage(argv[1],argv[2],tabs,intOpt(argv,3,"-p",1),intOpt(argv,3,"-m",0)*(1L<<20),intOpt(argv,3,"-b",0)<<20,hasFlag(argv,3,"-w"));
 	    break;
 	}
 	    
@@ -127,7 +153,7 @@ public final class m8b {
 	    
 	case "reduce": {
 	    System.out.println("do reduce read "+argv[1]+" write "+argv[2]+" slice "+argv[3]);
-	    reduce(argv[1],argv[2],Integer.parseInt(argv[3]));
+	    reduce(argv[1],argv[2],Integer.parseInt(argv[3]),intOpt(argv,4,"-p",1),intOpt(argv,4,"-m",0)*(1L<<20),intOpt(argv,4,"-b",0)<<20,hasFlag(argv,4,"-w"));
 	    break;
 	}
 
@@ -140,25 +166,64 @@ public final class m8b {
 	    
 	case "combine": {
 	    System.out.println("do combine read "+argv[1]+" write "+argv[2]+" slice "+argv[3]);
-	    combine(argv[1],argv[2],Integer.parseInt(argv[3]));
+	    String prune = strOpt(argv,4,"--prune",null);
+	    combine(argv[1],argv[2],Integer.parseInt(argv[3]),version(argv,4),prune == null ? null : Prune.policy(prune),intOpt(argv,4,"-p",1));
+	    keyFilter(argv[2],strOpt(argv,4,"--filter",null));
+	    break;
+	}
+
+	case "compare": {
+	    System.out.println("do compare read "+argv[1]+" and "+argv[2]+" queries "+argv[3]);
+	    compare(argv[1],argv[2],argv[3],intOpt(argv,4,"--top",10));
 	    break;
 	}
 
 	case "query":{
 	    System.out.println("do query read "+argv[1]+" check "+Arrays.stream(argv).skip(2).collect(Collectors.joining(", ")));
-	    query(argv[1],Arrays.copyOfRange(argv,2,argv.length));
+	    query(argv[1],dropOpt(argv,2,"--top"),intOpt(argv,2,"--top",-1));
 	    break;
 	}
 	case "scan":{
 	    System.out.println("do scan read "+argv[1]+" check "+Arrays.stream(argv).skip(2).collect(Collectors.joining(", ")));
-	    scan(argv[1],Arrays.copyOfRange(argv,2,argv.length));
+	    scan(argv[1],dropOpt(argv,2,"--top"),intOpt(argv,2,"--top",-1));
 	    break;
 	}
    	case "unf": {
 	    System.out.println("do unified normal form read "+argv[1]+" stage "+argv[2]+" write "+argv[3]);
-    	    boolean tabs = (argv.length > 4 && "-t".equals(argv[4]));
+    	    boolean tabs = hasFlag(argv,4,"-t");
+
+	    unf(argv[1],argv[2],argv[3],tabs,intOpt(argv,4,"-p",1),intOpt(argv,4,"-m",0)*(1L<<20),intOpt(argv,4,"-b",0)<<20,hasFlag(argv,4,"-w"),version(argv,4));
+	    keyFilter(argv[3],strOpt(argv,4,"--filter",null));
+	    break;
+	}
+
+	case "serve": {
+	    System.out.println("do serve read "+argv[1]+" port "+argv[2]);
+	    QueryServer.serve(argv[1],Integer.parseInt(argv[2]),intOpt(argv,3,"-p",4));
+	    break;
+	}
+
+	case "batch": {
+	    System.out.println("do batch read "+argv[1]+" queries "+argv[2]+" write "+argv[3]);
+	    batch(argv[1],argv[2],argv[3],intOpt(argv,4,"--top",-1));
+	    break;
+	}
+
+	case "convert": {
+	    System.out.println("do convert read "+argv[1]+" write "+argv[2]+" version "+argv[3]);
+	    convert(argv[1],argv[2],Integer.parseInt(argv[3]));
+	    break;
+	}
+
+	case "filter": {
+	    System.out.println("do filter read "+argv[1]+" false positive rate "+argv[2]);
+	    keyFilter(argv[1],argv[2]);
+	    break;
+	}
 
-	    unf(argv[1],argv[2],argv[3],tabs);
+	case "bench":{
+	    System.out.println("do bench "+argv[1]);
+	    bench(argv);
 	    break;
 	}
 
@@ -169,17 +234,27 @@ public final class m8b {
 	}
 
 	default:{
-	    System.err.println("m8b generate observation-filename m8b-filename slice-bits [-t]");
-	    System.err.println("m8b stage observation-filename stage-location/ [-t]");
-	    System.err.println("m8b restage observation-filename stage-location/ [-t]");
+	    System.err.println("m8b generate observation-filename m8b-filename slice-bits [-t] [-p threads] [-v version] [--filter fp-rate]");
+	    System.err.println("m8b stage observation-filename stage-location/ [-t] [-p threads] [-b buffer-MB] [-w]");
+	    System.err.println("m8b restage observation-filename stage-location/ [-t] [-p threads] [-m sort-MB] [-b buffer-MB] [-w]");
    	    System.err.println("m8b score stage-location/");
 	    System.err.println("m8b score2 stage-location/");
-	    System.err.println("m8b reduce stage-location/ reduce-location/ slice-bits");
+	    System.err.println("m8b reduce stage-location/ reduce-location/ slice-bits [-p threads] [-m sort-MB] [-b buffer-MB] [-w]");
 	    System.err.println("m8b compact stage-location/");
-	    System.err.println("m8b combine reduce-location/ m8b-filename slice-bits");
+	    System.err.println("m8b combine reduce-location/ m8b-filename[.gz] slice-bits [-p threads] [-v version] [--prune all|near:n] [--filter fp-rate]");
+	    System.err.println("m8b unf observation-filename stage-location/ m8b-filename [-t] [-p threads] [-m sort-MB] [-b buffer-MB] [-w] [-v version] [--filter fp-rate]");
+	    System.err.println("m8b convert m8b-filename m8b-filename version");
+	    System.err.println("m8b filter m8b-filename fp-rate");
 	    System.err.println("m8b dumpi intermediate-filename");
-	    System.err.println("m8b query m8b-filename mac1 [... macN]");
-	    System.err.println("m8b scan m8b-filename mac1 [... macN]");
+	    System.err.println("m8b query m8b-filename mac1 [... macN] [--top n]");
+	    System.err.println("m8b scan m8b-filename mac1 [... macN] [--top n]");
+	    System.err.println("m8b serve m8b-filename port [-p threads]");
+	    System.err.println("m8b batch m8b-filename query-filename result-filename [--top n]");
+	    System.err.println("m8b compare m8b-filename m8b-filename query-filename [--top n]");
+	    System.err.println("m8b bench parse observation-filename [-t]");
+	    System.err.println("m8b bench sort record-count [-p threads]");
+	    System.err.println("m8b bench siphash mac-count");
+	    System.err.println("m8b bench project point-count [spread-degrees]");
 
 	    break;
 	}
@@ -187,60 +262,110 @@ public final class m8b {
     }
 
     /**
-     * read mac|lat|lon per line text file (skipping first header line)
-     * convert into m8b data structure, write out to file
+     * micro benchmarks, see Bench
      */
-    private static void generate(String fromFile, String toFile, int slicebits,boolean tabs) throws Exception {
-	Stream<String> lines = Files.lines(new File(fromFile).toPath()).skip(1);
-
-	// just zerokey it. we're not trying to avoid collisions.
-	SipKey sipkey = new SipKey(new byte[16]);
-	byte[] macbytes = new byte[6];
-	Map<Integer,Set<mgrs>> mjg = new TreeMap<Integer,Set<mgrs>>();
-	
-	int non_utm=0;
-
-	int records = 0;
-
-	char sep = tabs ? '\t' : '|';
-	
-        for (Iterator<String> it = lines.iterator(); it.hasNext(); )
-        {
+    private static void bench(String[] argv) throws Exception {
+	switch(argv[1]) {
+	case "parse":
+	    Bench.parse(argv[2],hasFlag(argv,3,"-t"));
+	    break;
+	case "sort":
+	    Bench.sort(Integer.parseInt(argv[2]),intOpt(argv,3,"-p",1));
+	    break;
+	case "siphash":
+	    Bench.siphash(Integer.parseInt(argv[2]));
+	    break;
+	case "project":
+	    Bench.project(Integer.parseInt(argv[2]),argv.length > 3 ? Double.parseDouble(argv[3]) : 0);
+	    break;
+	default:
+	    System.err.println("unknown bench "+argv[1]);
+	}
+    }
 
-	    //bssid|bestlat|bestlon
-	    //8e:15:44:60:50:ac|40.00900289|-75.21358834
-	    
-	    String line = it.next();
+    /**
+     * the -v output version at or after position from, 2 if absent
+     */
+    private static int version(String[] argv, int from) {
+	int v = intOpt(argv,from,"-v",2);
+	if (v != 2 && v != 3) {
+	    throw new IllegalArgumentException("unsupported version:"+v);
+	}
+	return v;
+    }
 
-	    int b1 = line.indexOf(sep);
-	    int b2 = line.indexOf(sep,b1+1);
+    /**
+     * true if flag appears in argv at or after position from
+     */
+    private static boolean hasFlag(String[] argv, int from, String flag) {
+	for (int i = from; i < argv.length; i++) {
+	    if (flag.equals(argv[i])) {
+		return true;
+	    }
+	}
+	return false;
+    }
 
-	    String latstr = line.substring(b1+1,b2);
-	    String lonstr = line.substring(b2+1);
+    /**
+     * the int following opt in argv at or after position from, def if opt is absent
+     */
+    private static int intOpt(String[] argv, int from, String opt, int def) {
+	for (int i = from; i < argv.length-1; i++) {
+	    if (opt.equals(argv[i])) {
+		return Integer.parseInt(argv[i+1]);
+	    }
+	}
+	return def;
+    }
 
-	    double lat = Double.parseDouble(latstr);
-	    double lon = Double.parseDouble(lonstr);
+    /**
+     * the String following opt in argv at or after position from, def if opt is absent
+     */
+    private static String strOpt(String[] argv, int from, String opt, String def) {
+	for (int i = from; i < argv.length-1; i++) {
+	    if (opt.equals(argv[i])) {
+		return argv[i+1];
+	    }
+	}
+	return def;
+    }
 
-	    if (!(-80<=lat && lat<=84)) {
-		non_utm++;
+    /**
+     * argv from position from on, without opt and the value following it
+     */
+    private static String[] dropOpt(String[] argv, int from, String opt) {
+	List<String> rest = new ArrayList<>();
+	for (int i = from; i < argv.length; i++) {
+	    if (opt.equals(argv[i])) {
+		i++;
 		continue;
 	    }
+	    rest.add(argv[i]);
+	}
+	return rest.toArray(new String[rest.size()]);
+    }
 
-	    mgrs m = mgrs.fromUtm(utm.fromLatLon(lat,lon));
-
-            String slice2 = line.substring(0,17);
-	    Integer kslice2 = extractKeyFrom(slice2,macbytes,sipkey,slicebits);
-
-	    Set<mgrs> locs = mjg.get(kslice2);
-	    if (locs==null){
-		locs = new HashSet<mgrs>();
-		mjg.put(kslice2,locs);
-	    }
-	    if(locs.add(m)){
-		records++;
+    /**
+     * read mac|lat|lon per line text file (skipping first header line)
+     * convert into m8b data structure, write out to file
+     */
+    private static void generate(String fromFile, String toFile, int slicebits, boolean tabs, int threads, int version) throws Exception {
+	// packed key+cell longs (see Records), squeezed whenever they fill up so dups don't pile up.
+	long[][] recs = {new long[1<<16]};
+	int[] n = {0};
+	RadixSort radix = new RadixSort(recs[0].length,threads);
+
+	int non_utm = Ingest.run(fromFile,tabs,slicebits,threads,(key,coords,off)->{
+	    if (n[0] == recs[0].length) {
+		n[0] = PartitionSorter.sortUnique(recs[0],n[0],radix);
+		if (n[0] > recs[0].length / 2) {
+		    recs[0] = Arrays.copyOf(recs[0],recs[0].length*2);
+		}
 	    }
-	}
-	// mjg is complete, write out to pairfile
+	    recs[0][n[0]++] = Records.pack(key,mgrs.cellFromBytes(coords,off));
+	});
+	int records = PartitionSorter.sortUnique(recs[0],n[0],radix);
+	// recs is complete, write out to pairfile
 
 	Charset utf8  = Charset.forName("UTF-8");
 	SeekableByteChannel out = Files.newByteChannel(new File(toFile).toPath(), EnumSet.of(StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE));
@@ -249,45 +374,20 @@ public final class m8b {
     
 	// write header
 	bb.put("MJG\n".getBytes(utf8)); // magic number
-	bb.put("2\n".getBytes(utf8)); // version
+	bb.put(String.format("%x\n",version).getBytes(utf8)); // version
 	bb.put("SIP-2-4\n".getBytes(utf8)); // hash
 	bb.put(String.format("%x\n",slicebits).getBytes(utf8)); // slice bits (hex)
 	bb.put("MGRS-1000\n".getBytes(utf8)); // coords
 	bb.put("4\n".getBytes(utf8)); // id size in bytes (hex)
-	bb.put("9\n".getBytes(utf8)); // coords size in bytes (hex)
+	bb.put(String.format("%x\n",Records.coordsize(version)).getBytes(utf8)); // coords size in bytes (hex)
 	bb.put(String.format("%x\n",records).getBytes(utf8)); // record count (hex)
 
-	int recordsize = 4+9;
-	
 	bb.flip();
 	while (bb.hasRemaining()){
 	    out.write(bb);
 	}
 
-	// back to fill mode
-	bb.clear();
-	byte[] mstr = new byte[9];
-	for ( Map.Entry<Integer,Set<mgrs>> me : mjg.entrySet()) {
-	    int key = me.getKey().intValue();
-	    for ( mgrs m : me.getValue() ) {
-
-		if (bb.remaining() < recordsize ) {
-		    bb.flip();
-		    while (bb.hasRemaining()){
-			out.write(bb);
-		    }
-		    bb.clear();
-		}
-		m.populateBytes(mstr);
-		bb.putInt(key).put(mstr);
-	    }
-	}
-	
-	bb.flip();
-	while (bb.hasRemaining()) {
-	    out.write(bb);
-	}
-	bb.clear();
+	PartitionSorter.write(recs[0],records,out,version,new byte[9]);
 	out.close();
     }
 
@@ -299,84 +399,30 @@ public final class m8b {
      * 
      * stage splits fromFile into 16 files 
      */
-    private static void stage(String fromFile, String stageLoc, boolean tabs) throws Exception {
-
-	Stream<String> lines = Files.lines(new File(fromFile).toPath()).skip(1);
-
-	// just zerokey it. we're not trying to avoid collisions.
-	SipKey sipkey = new SipKey(new byte[16]);
-	byte[] macbytes = new byte[6];
-
-
-	ByteBuffer[] bb = new ByteBuffer[16];
-	SeekableByteChannel[] out = new SeekableByteChannel[bb.length];
+    private static void stage(String fromFile, String stageLoc, boolean tabs, int threads, int buffer, boolean behind) throws Exception {
 
-
-	for (int i=0;i<bb.length;i++) {
-	    bb[i] = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
-	    out[i] = Files.newByteChannel(new File(stageLoc,"stage_"+i).toPath(), EnumSet.of(StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE));
+	Path[] stage = new Path[16];
+	for (int i=0;i<stage.length;i++) {
+	    stage[i] = new File(stageLoc,"stage_"+i).toPath();
 	}
+	PartitionWriter out = new PartitionWriter(stage,buffer,behind);
 	
-	int non_utm=0;
-
-	int records = 0;
-	int[] rslice = new int[bb.length];
-
-	char sep = tabs ? '\t' : '|';
-	
+	int[] rslice = new int[stage.length];
 	int recordsize = 4+9;
-	byte[] mstr = new byte[9];
-        for (Iterator<String> it = lines.iterator(); it.hasNext(); )
-        {
+	int[] counter = {0};
 
-	    //bssid|bestlat|bestlon
-	    //8e:15:44:60:50:ac|40.00900289|-75.21358834
-	    
-	    String line = it.next();
+	int non_utm = Ingest.run(fromFile,tabs,32,threads,(key,coords,off)->{
+	    int idx = (counter[0] & 0x0f); // straight round robin
 
-	    int b1 = line.indexOf(sep);
-	    int b2 = line.indexOf(sep,b1+1);
-
-	    String latstr = line.substring(b1+1,b2);
-	    String lonstr = line.substring(b2+1);
-
-	    double lat = Double.parseDouble(latstr);
-	    double lon = Double.parseDouble(lonstr);
-
-	    if (!(-80<=lat && lat<=84)) {
-		non_utm++;
-		continue;
-	    }
-
-	    mgrs m = mgrs.fromUtm(utm.fromLatLon(lat,lon));
-
-            String slice2 = line.substring(0,17);
-	    int key = extractIntKeyFrom(slice2,macbytes,sipkey,32);
-	    int idx = (records & 0x0f); // straight round robin
-
-	    if (bb[idx].remaining() < recordsize ) {
-		bb[idx].flip();
-		while (bb[idx].hasRemaining()){
-		    out[idx].write(bb[idx]);
-		}
-		bb[idx].clear();
-	    }
-	    m.populateBytes(mstr);
-	    bb[idx].putInt(key).put(mstr);
-	    records++;
+	    out.put(idx,key,coords,off);
+	    counter[0]++;
 	    rslice[idx]++;
-	}
+	});
+	int records = counter[0];
 
 	// done. do last write/flush
-	for (int i=0;i<bb.length;i++) {
-	    bb[i].flip();
-	    while (bb[i].hasRemaining()){
-		out[i].write(bb[i]);
-	    }
-	    bb[i].clear();
-	    
-	    out[i].close();
-	}
+	out.close();
+	System.out.println(out);
 	
 	System.out.println("there were "+non_utm+" out of bounds records, and a total of "+records+" written "+(records*recordsize) +" bytes");
 	for(int i = 0; i< rslice.length; i++){
@@ -391,92 +437,43 @@ public final class m8b {
      * convert into multiple file intermediate m8b data at stageLoc
      * no slicing of ids, reduces to ~30% of source data size.
      * 
-     * stage splits fromFile into 16 files, by unsliced hash, and sort/reduces them.
+     * stage splits fromFile into key ranges of about the same size, by unsliced hash, and sort/reduces them.
      */
-    private static void restage(String fromFile, String stageLoc, boolean tabs) throws Exception {
-
-	Stream<String> lines = Files.lines(new File(fromFile).toPath()).skip(1);
-
-	// just zerokey it. we're not trying to avoid collisions.
-	SipKey sipkey = new SipKey(new byte[16]);
-	byte[] macbytes = new byte[6];
+    private static void restage(String fromFile, String stageLoc, boolean tabs, int threads, long budget, int buffer, boolean behind) throws Exception {
 
+	// sampled key ranges, so the partitions come out even and each fits the budget
+	RangePartitioner rp = RangePartitioner.forObservations(fromFile,tabs,budget,16);
+	System.out.println(rp);
 
-	ByteBuffer[] bb = new ByteBuffer[16];
-	SeekableByteChannel[] out = new SeekableByteChannel[bb.length];
+	int parts = rp.partitions();
 
-	Path[] stage = new Path[bb.length];
-	Path[] reduce2 = new Path[bb.length];
+	Path[] stage = new Path[parts];
+	Path[] reduce2 = new Path[parts];
 
-	for (int i=0;i<bb.length;i++) {
-	    bb[i] = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+	for (int i=0;i<parts;i++) {
 	    stage[i] = new File(stageLoc,"stage_"+i).toPath();
-	    out[i] = Files.newByteChannel(stage[i], EnumSet.of(StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE));
 	    reduce2[i] = new File(stageLoc,"reduce2_"+i).toPath();
 	}
+	PartitionWriter out = new PartitionWriter(stage,buffer,behind);
 	
-	int non_utm=0;
-
-	int records = 0;
-	int[] rslice = new int[bb.length];
-
-	char sep = tabs ? '\t' : '|';
-	
+	int[] rslice = new int[parts];
 	int recordsize = 4+9;
-	byte[] mstr = new byte[9];
-        for (Iterator<String> it = lines.iterator(); it.hasNext(); )
-        {
-
-	    //bssid|bestlat|bestlon
-	    //8e:15:44:60:50:ac|40.00900289|-75.21358834
-	    
-	    String line = it.next();
-
-	    int b1 = line.indexOf(sep);
-	    int b2 = line.indexOf(sep,b1+1);
-
-	    String latstr = line.substring(b1+1,b2);
-	    String lonstr = line.substring(b2+1);
-
-	    double lat = Double.parseDouble(latstr);
-	    double lon = Double.parseDouble(lonstr);
-
-	    if (!(-80<=lat && lat<=84)) {
-		non_utm++;
-		continue;
-	    }
-
-	    mgrs m = mgrs.fromUtm(utm.fromLatLon(lat,lon));
+	int[] counter = {0};
 
-            String slice2 = line.substring(0,17);
-	    int key = extractIntKeyFrom(slice2,macbytes,sipkey,32);
+	int non_utm = Ingest.run(fromFile,tabs,32,threads,(key,coords,off)->{
+	    int idx = rp.partition(key);
 
-	    int idx = (int)((key >> 28) & 0x0f);
-
-	    if ( bb[idx].remaining() < recordsize ) {
-		bb[idx].flip();
-		while (bb[idx].hasRemaining()){
-		    out[idx].write(bb[idx]);
-		}
-		bb[idx].clear();
-	    }
-	    m.populateBytes(mstr);
-	    bb[idx].putInt(key).put(mstr);
-	    records++;
+	    out.put(idx,key,coords,off);
+	    counter[0]++;
 	    rslice[idx]++;
-	}
+	});
+	int records = counter[0];
 
 	int max = -1;
 	// done. do last write/flush
-	for (int i=0;i<bb.length;i++) {
-	    bb[i].flip();
-	    while (bb[i].hasRemaining()){
-		out[i].write(bb[i]);
-	    }
-	    bb[i].clear();
-	    
-	    out[i].close();
-
+	out.close();
+	System.out.println(out);
+	for (int i=0;i<parts;i++) {
 	    if (rslice[i] > max){
 		max = rslice[i];
 	    }
@@ -487,67 +484,15 @@ public final class m8b {
 	    System.out.println(i+" => "+rslice[i]);
 	}
 	
-	ByteBuffer ib = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN); // screw you, java
-
-	// should we bound this max? secondary option is multifile sortmerge.
-	System.out.println("max: "+max+", allocating ~"+(max*(recordsize+8))+"b");
-	byte[][] entries = new byte[max][];
-	for ( int i = 0;i<entries.length;i++){
-	    entries[i] = new byte[recordsize];
-	}
-	int dups[] = new int[stage.length];
-
-
-	for (int i =0;i<stage.length;i++ ) {
-	    Path entry = stage[i];
-	    SeekableByteChannel in = Files.newByteChannel(entry, EnumSet.of(StandardOpenOption.READ));//,);
-	    // 
-	    int read = in.read(ib);
-	    int idx=0;
-	    while (read > 0) {
-		ib.flip();
-		
-		while ( ib.remaining() > recordsize ) {
-		    ib.get(entries[idx],0,recordsize); // guaranteed to have recordsize from the conditional and bytebuffer.get will fill what is available.
-		    idx++;
-		}
-		ib.compact(); // partial reads.
-		read = in.read(ib);
-	    }
-	    // sort entries by keybits from 0,idx
-	    Arrays.sort(entries,0,idx,CMP);
-
-	    SeekableByteChannel outc = Files.newByteChannel(reduce2[i], EnumSet.of(StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE));
-	    ib.clear();
-	    int lastwrite=-1;
-	    for ( int j = 0; j < idx; j++ ) {
-		if (ib.remaining() < recordsize ) {
-		    ib.flip();
-		    while (ib.hasRemaining()){
-			outc.write(ib);
-		    }
-		    ib.clear();
-		}
-		// suppress dups
-		if ( lastwrite >= 0 ) {
-		    if (CMP.compare(entries[lastwrite],entries[j]) == 0) {
-			dups[i]++;
-			continue;
-		    }
-		}
-		
-		ib.put(entries[j],0,recordsize);
-		lastwrite = j;
-	    }
-	    // done. do last write and flush
-	    ib.flip();
-	    while (ib.hasRemaining()){
-		outc.write(ib);
-	    }
-	    ib.clear();
-	    outc.close();
-	}
+	// bounded by budget, bigger partitions are sorted in runs and merged, threads of them at once
+	PartitionReducer reducer = new PartitionReducer(threads,threads,budget);
+	System.out.println("max: "+max+", allocating ~"+reducer.cost(max)+"b");
+	int dups[] = reducer.reduce(stage,reduce2,2);
+	System.out.println(reducer);
 	System.out.println("dups suppressed: "+Arrays.stream(dups).mapToObj(x->Integer.toString(x)).collect(Collectors.joining(", ")));
+	if (reducer.spills > 0) {
+	    System.out.println("spilled "+reducer.spills+" runs");
+	}
 
 	// shuffle stage->oldstage, reduce2->stage, remove oldstage
 	for (int i = 0; i < reduce2.length; i++) {
@@ -567,9 +512,9 @@ public final class m8b {
      * convert into multiple file intermediate m8b data at stageLoc
      * no slicing of ids, reduces to ~30% of source data size.
      * 
-     * unf splits fromFile into 256 files, by unsliced hash, and sort/reduces them, then combines them into a final m8b 
+     * unf splits fromFile into key ranges of about the same size, by unsliced hash, and sort/reduces them, then combines them into a final m8b 
      */
-    private static void unf(String fromFile, String stageLoc, String toFile, boolean tabs) throws Exception {
+    private static void unf(String fromFile, String stageLoc, String toFile, boolean tabs, int threads, long budget, int buffer, boolean behind, int version) throws Exception {
 
 	Charset utf8  = Charset.forName("UTF-8");
 	SeekableByteChannel outc = Files.newByteChannel(new File(toFile).toPath(), EnumSet.of(StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE));//,);
@@ -580,12 +525,12 @@ public final class m8b {
     
 	// write header
 	bbc.put("MJG\n".getBytes(utf8)); // magic number
-	bbc.put("2\n".getBytes(utf8)); // version
+	bbc.put(String.format("%x\n",version).getBytes(utf8)); // version
 	bbc.put("SIP-2-4\n".getBytes(utf8)); // hash
 	bbc.put(String.format("%02x\n",slicebits).getBytes(utf8)); // slice bits (hex)
 	bbc.put("MGRS-1000\n".getBytes(utf8)); // coords
 	bbc.put("4\n".getBytes(utf8)); // id size in bytes (hex)
-	bbc.put("9\n".getBytes(utf8)); // coords size in bytes (hex)
+	bbc.put(String.format("%x\n",Records.coordsize(version)).getBytes(utf8)); // coords size in bytes (hex)
         // this string will always be at the same fixed offset: and will be replaced at the end
 	int pos = bbc.position();
 	bbc.put(String.format("%08x\n",0).getBytes(utf8)); // record count (hex)
@@ -596,98 +541,41 @@ public final class m8b {
 	}
 
 
-	ReadableByteChannel inc = Files.newByteChannel(new File(fromFile).toPath(), EnumSet.of(StandardOpenOption.READ));//,);
-
-	if (fromFile.endsWith(".gz") || fromFile.endsWith(".GZ")) {// there's got to be a better way!
-	    InputStream is = Channels.newInputStream(inc);
-	    GZIPInputStream gis = new GZIPInputStream(is);
-	    inc = Channels.newChannel(gis);
-	}
-	
-
-	Stream<String> lines = (new BufferedReader(Channels.newReader(inc,utf8.newDecoder(),-1)).lines()).skip(1);//Files.lines(new File(fromFile).toPath()).skip(1);
-
-	// just zerokey it. we're not trying to avoid collisions.
-	SipKey sipkey = new SipKey(new byte[16]);
-	byte[] macbytes = new byte[6];
-
+	// sampled key ranges, so the partitions come out even and each fits the budget
+	RangePartitioner rp = RangePartitioner.forObservations(fromFile,tabs,budget,256);
+	System.out.println(rp);
 
-	ByteBuffer[] bb = new ByteBuffer[256];
-	SeekableByteChannel[] out = new SeekableByteChannel[bb.length];
+	int parts = rp.partitions();
 
-	Path[] stage = new Path[bb.length];
+	Path[] stage = new Path[parts];
 
-	for (int i=0;i<bb.length;i++) {
-	    bb[i] = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+	for (int i=0;i<parts;i++) {
 	    stage[i] = new File(stageLoc,"stage_"+i).toPath();
-	    out[i] = Files.newByteChannel(stage[i], EnumSet.of(StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE));
 	}
+	PartitionWriter out = new PartitionWriter(stage,buffer,behind);
 	
-	int non_utm=0;
-
-	int records = 0;
-	int[] rslice = new int[bb.length];
-
-	char sep = tabs ? '\t' : '|';
-	
+	int[] rslice = new int[parts];
 	int recordsize = 4+9;
-	byte[] mstr = new byte[9];
-        for (Iterator<String> it = lines.iterator(); it.hasNext(); )
-        {
-
-	    //bssid|bestlat|bestlon
-	    //8e:15:44:60:50:ac|40.00900289|-75.21358834
-	    
-	    String line = it.next();
-
-	    int b1 = line.indexOf(sep);
-	    int b2 = line.indexOf(sep,b1+1);
-
-	    String latstr = line.substring(b1+1,b2);
-	    String lonstr = line.substring(b2+1);
-
-	    double lat = Double.parseDouble(latstr);
-	    double lon = Double.parseDouble(lonstr);
-
-	    if (!(-80<=lat && lat<=84)) {
-		non_utm++;
-		continue;
-	    }
-
-	    mgrs m = mgrs.fromUtm(utm.fromLatLon(lat,lon));
+	int[] counter = {0};
 
-            String slice2 = line.substring(0,17);
-	    int key = extractIntKeyFrom(slice2,macbytes,sipkey,32);
+	// .gz input is inflated by Ingest
+	int non_utm = Ingest.run(fromFile,tabs,32,threads,(key,coords,off)->{
+	    int idx = rp.partition(key);
 
-	    int idx = (int)((key >> 24) & 0x0ff);
-
-	    if ( bb[idx].remaining() < recordsize ) {
-		bb[idx].flip();
-		while (bb[idx].hasRemaining()){
-		    out[idx].write(bb[idx]);
-		}
-		bb[idx].clear();
-	    }
-	    m.populateBytes(mstr);
-	    bb[idx].putInt(key).put(mstr);
-	    records++;
+	    out.put(idx,key,coords,off);
+	    counter[0]++;
 	    rslice[idx]++;
-	    if (records % 1_000_000 == 0){
+	    if (counter[0] % 1_000_000 == 0){
 		System.out.print(".");
 	    }
-	}
+	});
+	int records = counter[0];
 
 	int max = -1;
 	// done. do last write/flush
-	for (int i=0;i<bb.length;i++) {
-	    bb[i].flip();
-	    while (bb[i].hasRemaining()){
-		out[i].write(bb[i]);
-	    }
-	    bb[i].clear();
-	    
-	    out[i].close();
-
+	out.close();
+	System.out.println(out);
+	for (int i=0;i<parts;i++) {
 	    if (rslice[i] > max){
 		max = rslice[i];
 	    }
@@ -698,73 +586,47 @@ public final class m8b {
 	    System.out.println(i+" => "+rslice[i]);
 	}
 	
-	ByteBuffer ib = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN); // screw you, java
-
-	// should we bound this max? secondary option is multifile sortmerge.
-	System.out.println("max: "+max+", allocating ~"+(max*(recordsize+8))+"b");
-	byte[][] entries = new byte[max][];
-	for ( int i = 0;i<entries.length;i++){
-	    entries[i] = new byte[recordsize];
-	}
-	int dups[] = new int[stage.length];
-
-
-	
-	records = 0;
-
-	for (int i =0;i<stage.length;i++ ) {
-	    		System.out.print(".");
-
-	    Path entry = stage[i];
-	    SeekableByteChannel in = Files.newByteChannel(entry, EnumSet.of(StandardOpenOption.READ));//,);
-	    // 
-	    int read = in.read(ib);
-	    int idx=0;
-	    while (read > 0) {
-		ib.flip();
-		
-		while ( ib.remaining() > recordsize ) {
-		    ib.get(entries[idx],0,recordsize); // guaranteed to have recordsize from the conditional and bytebuffer.get will fill what is available.
-		    idx++;
-		}
-		ib.compact(); // partial reads.
-		read = in.read(ib);
+	// bounded by budget, bigger partitions are sorted in runs and merged
+	int dups[];
+	int spills;
+	if (threads > 1) {
+	    // threads of them at once, each into its own file, then appended in order
+	    PartitionReducer reducer = new PartitionReducer(threads,threads,budget);
+	    System.out.println("max: "+max+", allocating ~"+reducer.cost(max)+"b");
+	    Path[] reduce2 = new Path[stage.length];
+	    for (int i = 0; i < stage.length; i++) {
+		reduce2[i] = new File(stageLoc,"reduce2_"+i).toPath();
 	    }
-	    // sort entries by keybits from 0,idx
-	    Arrays.sort(entries,0,idx,CMP);
-
-	    ib.clear();
-	    int lastwrite=-1;
-	    for ( int j = 0; j < idx; j++ ) {
-		if (ib.remaining() < recordsize ) {
-		    ib.flip();
-		    while (ib.hasRemaining()){
-			outc.write(ib);
-		    }
-		    ib.clear();
-		}
-		// suppress dups
-		if ( lastwrite >= 0 ) {
-		    if (CMP.compare(entries[lastwrite],entries[j]) == 0) {
-			dups[i]++;
-			continue;
+	    dups = reducer.reduce(stage,reduce2,version);
+	    for (int i = 0; i < reduce2.length; i++) {
+		System.out.print(".");
+		try (FileChannel in = FileChannel.open(reduce2[i],StandardOpenOption.READ)) {
+		    long size = in.size();
+		    for (long p = 0; p < size; ) {
+			p += in.transferTo(p,size-p,outc);
 		    }
 		}
-
-		records++;
-		
-		ib.put(entries[j],0,recordsize);
-		lastwrite = j;
+		Files.delete(reduce2[i]);
 	    }
-	    // done. do last write and flush
-	    ib.flip();
-	    while (ib.hasRemaining()){
-		outc.write(ib);
+	    System.out.print("\n"+reducer);
+	    records = (int)reducer.written;
+	    spills = reducer.spills;
+	} else {
+	    PartitionSorter sorter = new PartitionSorter(PartitionSorter.capacity(budget,max),threads);
+	    System.out.println("max: "+max+", allocating ~"+PartitionSorter.cost(budget,max)+"b");
+	    dups = new int[stage.length];
+	    for (int i =0;i<stage.length;i++ ) {
+		System.out.print(".");
+		dups[i] = sorter.sort(stage[i],outc,version);
 	    }
-	    ib.clear();
+	    records = (int)sorter.written;
+	    spills = sorter.spills;
 	}
 	
 	System.out.println("\ndups suppressed: "+Arrays.stream(dups).mapToObj(x->Integer.toString(x)).collect(Collectors.joining(", ")));
+	if (spills > 0) {
+	    System.out.println("spilled "+spills+" runs");
+	}
 
 	System.out.println("total records:"+records);
 
@@ -788,516 +650,118 @@ public final class m8b {
     
     /**
      * read multiple file intermediate m8b data at stageLoc
-     * establish and report stats on the dataset
+     * establish and report stats on the dataset, see Score
      *
      */
     private static void score(String stageLoc) throws Exception {
-	// first cut:
-	//   read each input file, populate
-	//     coord->index
-	//     coord->list of hashes
-	//     hash->bitset of coord indexes
-	//   for each coord
-	//     tscore = cscore = 0
-	//     for (i=0;i<hash.count;i++) // PIHD
-	//        bi = hash[i].bitset;
-	//        for (j=i+1;j<hash.count;j++)
-	//          bj = hash[j].bitset
-	//          c = bi.and(bj).cardinality() // hamming distance
-	//          if (c>0) // 0 = nothing in common
-	//             tscore += c
-	//             cscore++
-	//     coord -> mscore = tscore/cscore; // median score, lower is better
-
-	Charset utf8  = Charset.forName("UTF-8");
-	int recordsize = 4+9;
-	int mgrsize = 9;
-	byte[] mgrs = new byte[mgrsize];
-
-	// first entry in the list is the index
-	Map<String,List<Integer>> coordh = new HashMap<String,List<Integer>>();
-	Map<Integer,int[]> hashb = new HashMap<Integer,int[]>();
-
-	int keycollide = 0;
-	int records= 0;
-	int max=0;
-        int cmax =0;
-	
-	ByteBuffer ib = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN); // screw you, java
-	try (DirectoryStream<Path> stream = Files.newDirectoryStream(new File(stageLoc).toPath(), "stage_*")) {
-           for ( Path entry : stream ) {
-	       System.out.print('.');
-	       SeekableByteChannel in = Files.newByteChannel(entry, EnumSet.of(StandardOpenOption.READ));//,);
-	       // 
-	       int read = in.read(ib);
-	       while (read > 0) {
-		   ib.flip();
-
-		   while ( ib.remaining() > recordsize ) {
-		       records++;
-		       Integer fullk = ib.getInt();
-		       ib.get(mgrs,0,mgrs.length);
-		       String mgrst = new String(mgrs,0,mgrsize,utf8);
-		       List<Integer> idx_h = coordh.get(mgrst);
-		       Integer idx;
-		       if ( null == idx_h ) {
-			   idx = coordh.size();
-			   idx_h = new ArrayList<>();
-			   idx_h.add(idx);
-			   coordh.put( mgrst, idx_h );
-		       } else {
-			   idx = idx_h.get(0);
-		       }
-		       idx_h.add(fullk);
-                       if(idx_h.size() > cmax){
-                          cmax = idx_h.size();
-                       }
-
-		       int[] bs = hashb.get(fullk);
-		       if ( bs == null ) {
-			   bs = new int[1];
-			   hashb.put(fullk,bs);
-		       } else {
-			   keycollide++;
-		       }
-		       bs[0]++;
-		       if ( bs[0] > max ) {
-			   max = bs[0];
-		       }
-		   }
-		   ib.compact(); // partial reads.
-		   read = in.read(ib);
-	       }
-	   }
-	}
-	System.out.println("\nread:"+records+" hashes:"+hashb.size()+" cmax:"+cmax+" collisions:"+keycollide+" coords:"+coordh.size());
-
-	List<Map.Entry<Integer,int[]>> es = new ArrayList<>(hashb.size()); // damn you java
-	es.addAll(hashb.entrySet());
-        Comparator<Map.Entry<Integer,int[]>> cmp = Comparator.comparingInt((Map.Entry<Integer,int[]> me)->me.getValue()[0]).reversed();
-	es.sort(cmp);
-
-	for(int i = 0;i < 10; i++){
-	    System.out.println(es.get(i).getKey()+" = "+es.get(i).getValue()[0]);
-	}
-
-	// mgrs 100k density map for coords
-	Map<String,int[]> dense = new HashMap<>(60*20);
-	int dmax = 0;
-	for ( Map.Entry<String,List<Integer>> kvp : coordh.entrySet() ) {
-	    String mgrs100k = kvp.getKey().substring(0,3);
-	    int[] d = dense.get(mgrs100k);
-	    if (d == null) {
-		d = new int[1];
-		dense.put(mgrs100k,d);
-	    }
-	    d[0] += kvp.getValue().size() - 1; // hashes at this coord
-	    if (d[0] > dmax){
-		dmax = d[0];
-	    }
-	}
-	double dec = ((dmax+1)/10.0);
-	String[] zones = new String[]{"01", "02", "03", "04", "05", "06", "07", "08", "09", "10", "11", "12", "13", "14", "15", "16", "17", "18", "19", "20", "21", "22", "23", "24", "25", "26", "27", "28", "29", "30", "31", "32", "33", "34", "35", "36", "37", "38", "39", "40", "41", "42", "43", "44", "45", "46", "47", "48", "49", "50", "51", "52", "53", "54", "55", "56", "57", "58", "59", "60" };
-	String[] bands = new String[]{ "W","V","U","T","S","R","Q","P","O","N","M","L","K","J","I","H","G","F","E","D","C"};
-	char[] fill = {' ','\u25AB','\u25AA','\u25A1','\u25F0','\u25F3','\u25F2','\u25F1','\u25EB','\u25A4','\u25EA'};
-	// walk the dense map 01W -> 60W \n 01V -> 60V
-        System.out.print("world 100k density scale: 0[");
-	for ( char c : fill ) {
-	    System.out.print(c);
-	    System.out.print(' ');
-	}
-	System.out.println("]10 ("+dmax+")");
-	System.out.println(" 01                                                          60");
-	System.out.println(" +------------------------------------------------------------+");
-	for (int b = 0; b < bands.length; b++) {
-	    System.out.print((b==0||b==bands.length-1)?bands[b] : ' ');
-	    System.out.print('|');
-	    for (int z = 0;z<zones.length;z++) {
-		// test
-		String key = zones[z]+bands[b];
-		int[] d = dense.get(key);
-		if (d==null){
-		    System.out.print(fill[0]); // nothing!
-		} else {
-		    int v = (int)(d[0]/dec)+1;
-		    System.out.print(fill[v]);
-		}
-	    }
-	    System.out.println("|");
-	}
-	System.out.println(" +------------------------------------------------------------+");
-	
+	Score.score(stageLoc);
     }
 
-    /**
-     * read multiple file intermediate m8b data at stageLoc.
-     * this needs to be run on the already deduped stage data.
-     * establish and report stats on the dataset
-     *
-     */
-    private static void score2(String stageLoc) throws Exception {
-	// second cut:
-	// look at overlapping density as histogram
-	//   read each input file, populate
-	//     coord->list of hashes
-	//     hash->list of coords
-	//   for each coord c1
-	//     n = count of hash per c1
-	//     for each hash h1 per c1
-	//       for each coord c2 per h1
-	//         histogram[c2]++
-	//     score(c1) = f(histogram)
-	//     -- some factor of shape of histogram
-	//     -- histogram[c1] = n by definition
-	//     -- if histogram[x] == n, then x dominates c1. this relation is a directed graph. ideal is minimal dominated set.
-	  
-	Charset utf8  = Charset.forName("UTF-8");
-	int recordsize = 4+9;
-	int mgrsize = 9;
-	byte[] mgrs = new byte[mgrsize];
-
-	Map<String,List<Integer>> coordh = new HashMap<String,List<Integer>>();
-	Map<Integer,List<Integer>> hashc = new HashMap<Integer,List<Integer>>();
-
-	int records= 0;
-	int max=0;
-        int cmax =0;
-	
-	ByteBuffer ib = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN); // screw you, java
-	try (DirectoryStream<Path> stream = Files.newDirectoryStream(new File(stageLoc).toPath(), "stage_*")) {
-           for ( Path entry : stream ) {
-	       System.out.print('.');
-	       SeekableByteChannel in = Files.newByteChannel(entry, EnumSet.of(StandardOpenOption.READ));
-
-	       int read = in.read(ib);
-	       while (read > 0) {
-		   ib.flip();
-
-		   while ( ib.remaining() > recordsize ) {
-		       records++;
-		       Integer fullk = ib.getInt();
-		       ib.get(mgrs,0,mgrs.length);
-		       String mgrst = new String(mgrs,0,mgrsize,utf8);
-		       List<Integer> idx_h = coordh.get(mgrst);
-		       Integer idx;
-		       if ( null == idx_h ) {
-			   idx_h = new ArrayList<>();
-			   idx = coordh.size();
-			   coordh.put( mgrst, idx_h );
-			   idx_h.add(idx);
-		       } else {
-			   idx = idx_h.get(0);
-		       }
-		       idx_h.add(fullk);
-                       if(idx_h.size() > cmax){
-                          cmax = idx_h.size();
-                       }
-
-		       List<Integer> cs = hashc.get(fullk);
-		       if ( cs == null ) {
-			   cs = new ArrayList<>();
-			   hashc.put(fullk,cs);
-		       }
-		       cs.add(idx);
-		       if (cs.size() > max){
-			   max = cs.size();
-		       }
-		   }
-		   ib.compact(); // partial reads.
-		   read = in.read(ib);
-	       }
-	   }
-	}
-	System.out.println("\nread:"+records+" hashes:"+hashc.size()+" max:"+max+" cmax:"+cmax+" coords:"+coordh.size());
-
-	// NB with hist and dominates duplicated and combined, the walk/sum of coordh/hashc can be
-	// parallelized embarassingly as it is readonly.
-
-	// compute score2,per coord. including dominates graph (as it may affect filtering needs)
-	Map<Integer,List<Integer>> dominates = computeDominantP(coordh.values(),hashc);
-
-	if (dominates.size() > 0) {
-	    int dmax=0;
-	    for ( List<Integer> dominated : dominates.values() ){
-		if (dominated.size() > dmax){
-		    dmax = dominated.size();
-		}
-	    }
-
-	    System.out.println("there were "+dominates.size()+" dominating coordinates, dmax:"+dmax);
-
-
-	    List<Map.Entry<Integer,List<Integer>>> es = new ArrayList<>(dominates.size()); // damn you java
-	    es.addAll(dominates.entrySet());
-	    Comparator<Map.Entry<Integer,List<Integer>>> cmp = Comparator.comparingInt((Map.Entry<Integer,List<Integer>> me)->me.getValue().size()).reversed();
-	    es.sort(cmp);
-	    
-	    for(int i = 0;i < 10; i++){
-		System.out.println(es.get(i).getKey()+" = "+es.get(i).getValue().size());
-	    }
-	    
-	} else {
-	    System.out.println("there were no dominating coordinates");
-	}       	
-    }
-
-    /**
-     * compute the dominates relation over coords, possibly in parallel
-     */
-    private static Map<Integer,List<Integer>> computeDominantP(Collection<List<Integer>> coords,Map<Integer,List<Integer>> hashc){
-	// chop wood cary water
-	// scale/size iterators to match pool count
-	int pool = ForkJoinPool.getCommonPoolParallelism();
-	int csize = coords.size();
-	if (csize < 100000) {
-	    pool = 1;
-	}
-	System.out.println("||"+pool);
-
-	int chunksize= (csize/pool)+1; // yes, int. oversizes, last one will min out
-
-	List<List<Integer>> clist = new ArrayList<>(coords);
-	Dominator[] doms = new Dominator[pool];
-	for ( int i =0; i < pool; i++ ) {
-	    List<List<Integer>> sl = clist.subList(i*chunksize,Math.min((i+1)*chunksize,csize));
-	    Iterator<List<Integer>> s = sl.iterator();
-	    doms[i] = new Dominator(csize,s,hashc);
-	}
-
-	ForkJoinTask.invokeAll(doms);
-
-	Map<Integer,List<Integer>> dominates = new HashMap<>();
-
-	for ( Dominator d : doms ){
-	    Map<Integer,List<Integer>> m = d.join();
-	    for ( Map.Entry<Integer,List<Integer>> me : m.entrySet() ) {
-		List<Integer> l = dominates.get(me.getKey());
-		if (l == null){
-		    l = new ArrayList<>(me.getValue().size());
-		    dominates.put(me.getKey(),l);
-		}
-		l.addAll(me.getValue());
-	    }
-	}
-	
-	// compute score2,per coord. including dominates graph (as it may affect filtering needs)
-
-	return dominates;
-    }
-
-    /**
-     * worker for concurrent computation of dominate relation over the observation set
-     */
-    static class Dominator extends RecursiveTask< Map<Integer,List<Integer>> > implements Consumer<List<Integer>> {
-
-	final int[] hist;
-	final Map<Integer,List<Integer>> hashc;
-	final Iterator<List<Integer>> spl;
-	final Map<Integer,List<Integer>> d = new HashMap<>();
-	int count =0;
-	Dominator(int csize, Iterator<List<Integer>> spl, Map<Integer,List<Integer>> hashc){
-	    super();
-	    hist = new int[csize+1];
-	    this.hashc = hashc;
-	    this.spl = spl;
-	}
-
-	public void accept(List<Integer> hashes) {
-	    count++;
-	    int n = hashes.size()-1;
-	    if (n < 5 ) {
-		return;
-	    }
-	    if ((count & 0x0ff) == 0){
-                System.out.print('.');
-            }
-	    
-            int counti=0;
-	    Integer c1=-1;
-	    for ( Integer h1 : hashes ) {
-		if (counti==0){
-		    counti++; // skip the index.
-		    c1 = h1;
-		    continue;
-		}
-		List<Integer> hcoords = hashc.get(h1);
-
-		for ( Integer c2 : hcoords ) {
-                    counti++;
-                    if ((counti & 0x0fffff) == 0 ){
-                        System.out.print('@');
-                    } 
-		    
-		    hist[c2]++;
-		    
-		    if (hist[c2] == n) {
-			if ( !c2.equals( c1 ) ){ // c2 dominates c1
-			    List<Integer> dominated = d.get(c2);
-			    if (null == dominated){
-				dominated = new ArrayList<>();
-				d.put(c2,dominated);
-			    }
-			    dominated.add(c1);
-			}
-		    }
-		}
-	    }
-	    // histogram established. evaluate it for final score
-	    // somewhere here.
-
-	    // histogram reset
-	    Arrays.fill(hist,0);
-	}
-	
-	@Override
-	protected Map<Integer,List<Integer>>  compute(){
-	    spl.forEachRemaining(this);
-	    System.out.println(count);
-	    return d;
-	}
+    /**
+     * read multiple file intermediate m8b data at stageLoc.
+     * this needs to be run on the already deduped stage data.
+     * establish and report stats on the dataset, see Score
+     *
+     */
+    private static void score2(String stageLoc) throws Exception {
+	// second cut:
+	// look at overlapping density as histogram
+	//   read each input file, populate
+	//     coord->list of hashes
+	//     hash->list of coords
+	//   for each coord c1
+	//     n = count of hash per c1
+	//     for each hash h1 per c1
+	//       for each coord c2 per h1
+	//         histogram[c2]++
+	//     score(c1) = f(histogram)
+	//     -- some factor of shape of histogram
+	//     -- histogram[c1] = n by definition
+	//     -- if histogram[x] == n, then x dominates c1. this relation is a directed graph. ideal is minimal dominated set.
+	Score.score2(stageLoc);
     }
-    
-    
-    
+
     /**
      * read multiple file intermediate m8b data at stageLoc, slice, sort and remove duplicates into reduceLoc
      */
-    private static void reduce(String stageLoc, String reduceLoc, int slicebits) throws Exception {
+    private static void reduce(String stageLoc, String reduceLoc, int slicebits, int threads, long budget, int buffer, boolean behind) throws Exception {
 	// first cut:
 	//   read each input file
-	//     slice and append to a file based on highslice nibble
+	//     slice and append to a file based on sampled key range
 	//   read each appended file
 	//     sort entire file in memory
 	//     write out in order skipping dups
 
+	Path[] stage;
+	try (DirectoryStream<Path> stream = Files.newDirectoryStream(new File(stageLoc).toPath(), "stage_*")) {
+	    List<Path> l = new ArrayList<>();
+	    stream.forEach(l::add);
+	    stage = l.toArray(new Path[0]);
+	}
+
+	// sampled key ranges, so the partitions come out even and each fits the budget
+	RangePartitioner rp = RangePartitioner.forStage(stage,slicebits,budget);
+	System.out.println(rp);
+
 	// build output set
-	ByteBuffer[] bb = new ByteBuffer[16];
-	SeekableByteChannel[] out = new SeekableByteChannel[bb.length];
-	Path[] reduce = new Path[bb.length];
-	Path[] reduce2 = new Path[bb.length];
+	int parts = rp.partitions();
+	Path[] reduce = new Path[parts];
+	Path[] reduce2 = new Path[parts];
 
-	for (int i=0;i<bb.length;i++) {
-	    bb[i] = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+	for (int i=0;i<parts;i++) {
 	    reduce[i] = new File(reduceLoc,"reduce1_"+i).toPath();
 	    reduce2[i] = new File(reduceLoc,"reduce2_"+i).toPath();
-	    out[i] = Files.newByteChannel(reduce[i], EnumSet.of(StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE));
 	}
+	PartitionWriter out = new PartitionWriter(reduce,buffer,behind);
 
 	int recordsize = 4+9;
 	long mask = (1L << slicebits ) - 1;
-	long idxmask = (0x0fL << (slicebits-4));
 	byte[] mgrs = new byte[9];
 
-	int[] records= new int[bb.length];
+	int[] records= new int[parts];
 	
 	ByteBuffer ib = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN); // screw you, java
-	try (DirectoryStream<Path> stream = Files.newDirectoryStream(new File(stageLoc).toPath(), "stage_*")) {
-           for ( Path entry : stream ) {
-	       SeekableByteChannel in = Files.newByteChannel(entry, EnumSet.of(StandardOpenOption.READ));//,);
-	       // 
-	       int read = in.read(ib);
-	       while (read > 0) {
-		   ib.flip();
-
-		   while ( ib.remaining() > recordsize ) {
-		       int fullk = ib.getInt();
-		       ib.get(mgrs,0,mgrs.length);
-
-		       int key = (int)(fullk & mask);
-		       
-		       int idx = (int)(((key & idxmask) >> (slicebits-4)) & 0x0f);
+	for ( Path entry : stage ) {
+	    SeekableByteChannel in = Files.newByteChannel(entry, EnumSet.of(StandardOpenOption.READ));//,);
+	    // 
+	    int read = in.read(ib);
+	    while (read > 0) {
+		ib.flip();
 
-		       if (bb[idx].remaining() < recordsize ) {
-			   bb[idx].flip();
-			   while (bb[idx].hasRemaining()){
-			       out[idx].write(bb[idx]);
-			   }
-			   bb[idx].clear();
-		       }
+		while ( ib.remaining() >= recordsize ) {
+		    int fullk = ib.getInt();
+		    ib.get(mgrs,0,mgrs.length);
+
+		    int key = (int)(fullk & mask);
+		       
+		    int idx = rp.partition(key);
 
-		       bb[idx].putInt(key).put(mgrs);
-		       records[idx]++;
-		   }
-		   ib.compact(); // partial reads.
-		   read = in.read(ib);
-	       }
-           }
+		    out.put(idx,key,mgrs,0);
+		    records[idx]++;
+		}
+		ib.compact(); // partial reads.
+		read = in.read(ib);
+	    }
 	}
 
 	int max = -1;
 	// done. do last write/flush
-	for (int i=0;i<bb.length;i++) {
-	    bb[i].flip();
-	    while (bb[i].hasRemaining()){
-		out[i].write(bb[i]);
-	    }
-	    bb[i].clear();
-	    
-	    out[i].close();
-
+	out.close();
+	System.out.println(out);
+	for (int i=0;i<parts;i++) {
 	    if (records[i] > max){
 		max = records[i];
 	    }
 	}
 
 
-	ib.clear();
-	// should we bound this max? secondary option is multifile sortmerge.
-	System.out.println("max: "+max+", allocating ~"+(max*(recordsize+8))+"b");
-	byte[][] entries = new byte[max][];
-	for ( int i = 0;i<entries.length;i++){
-	    entries[i] = new byte[recordsize];
-	}
-	int dups[] = new int[reduce.length];
-
-	for (int i =0;i<reduce.length;i++ ) {
-	    Path entry = reduce[i];
-	    SeekableByteChannel in = Files.newByteChannel(entry, EnumSet.of(StandardOpenOption.READ));//,);
-	    // 
-	    int read = in.read(ib);
-	    int idx=0;
-	    while (read > 0) {
-		ib.flip();
-		
-		while ( ib.remaining() > recordsize ) {
-		    ib.get(entries[idx],0,recordsize); // guaranteed to have recordsize from the conditional and bytebuffer.get will fill what is available.
-		    idx++;
-		}
-		ib.compact(); // partial reads.
-		read = in.read(ib);
-	    }
-	    // sort entries by keybits from 0,idx
-	    Arrays.sort(entries,0,idx,CMP);
-
-	    SeekableByteChannel outc = Files.newByteChannel(reduce2[i], EnumSet.of(StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE));
-	    ib.clear();
-	    int lastwrite=-1;
-	    for ( int j = 0; j < idx; j++ ) {
-		if (ib.remaining() < recordsize ) {
-		    ib.flip();
-		    while (ib.hasRemaining()){
-			outc.write(ib);
-		    }
-		    ib.clear();
-		}
-		// suppress dups
-		if ( lastwrite >= 0 ) {
-		    if (CMP.compare(entries[lastwrite],entries[j]) == 0) {
-			dups[i]++;
-			continue;
-		    }
-		}
-		
-		ib.put(entries[j],0,recordsize);
-		lastwrite = j;
-	    }
-	    // done. do last write and flush
-	    ib.flip();
-	    while (ib.hasRemaining()){
-		outc.write(ib);
-	    }
-	    ib.clear();
-	    outc.close();
+	// bounded by budget, bigger partitions are sorted in runs and merged, threads of them at once
+	PartitionReducer reducer = new PartitionReducer(threads,threads,budget);
+	System.out.println("max: "+max+", allocating ~"+reducer.cost(max)+"b");
+	int dups[] = reducer.reduce(reduce,reduce2,2);
+	System.out.println(reducer);
+	if (reducer.spills > 0) {
+	    System.out.println("spilled "+reducer.spills+" runs");
 	}
 	System.out.println("dups suppressed: "+Arrays.stream(dups).mapToObj(x->Integer.toString(x)).collect(Collectors.joining(", ")));
 	
@@ -1333,7 +797,7 @@ public final class m8b {
     }
 
     /** reference comparator for records */
-    private static Comparator<byte[]> CMP = new RecComparator();
+    static final Comparator<byte[]> CMP = new RecComparator();
 
 
     /**
@@ -1341,12 +805,13 @@ public final class m8b {
      */
     private static void compact(String stageLoc) throws Exception {
 	// starts with stage_
-	reduce(stageLoc, stageLoc, 32);
+	reduce(stageLoc, stageLoc, 32, 1, 0, 0, false);
 
 	// now original stage_, reduce_, reduce2_
 	// move stage_ to oldstage_, move reduce2_ to stage_, remove oldstage_, remove reduce_,
 
-	for (int i=0;i<16;i++) {
+	int parts = partitions(stageLoc,"reduce2_").length;
+	for (int i=0;i<parts;i++) {
 	    Path reduce = new File(stageLoc,"reduce1_"+i).toPath();
 	    Path reduce2 = new File(stageLoc,"reduce2_"+i).toPath();
 	    Path stage = new File(stageLoc,"stage_"+i).toPath();
@@ -1362,65 +827,225 @@ public final class m8b {
     }
     
     /**
-     * read multiple file reduced intermediate m8b data at reduceLoc, combine into final m8b file at toFile
+     * prefix0, prefix1, ... at loc, for as many as there are. in key order, as reduce wrote them
+     */
+    static Path[] partitions(String loc, String prefix) throws IOException {
+	List<Path> l = new ArrayList<>();
+	for (Path p; Files.exists(p = new File(loc,prefix+l.size()).toPath()); ) {
+	    l.add(p);
+	}
+	if (l.isEmpty()) {
+	    throw new IOException("no "+prefix+"* partitions in "+loc);
+	}
+	return l.toArray(new Path[0]);
+    }
+
+    /**
+     * read multiple file reduced intermediate m8b data at reduceLoc, combine into final m8b file at toFile.
+     * a toFile ending in .gz is written gzipped, see GzipMembers
      */
-    private static void combine(String reduceLoc, String toFile, int slicebits) throws Exception {
+    private static void combine(String reduceLoc, String toFile, int slicebits, int version, Prune prune, int threads) throws Exception {
 	int recordsize = 4+9;
-	Path reduce[] = new Path[16];
+	Path reduce[] = partitions(reduceLoc,"reduce2_");
 	long total = 0;
 	for (int i=0;i<reduce.length;i++) {
-	    reduce[i] = new File(reduceLoc,"reduce2_"+i).toPath();
 	    total += Files.size(reduce[i]);
 	}
 	int records = (int)(total / recordsize);
+
+	// pruning needs every record at once, so hold them and write them from memory
+	long[] recs = null;
+	if (prune != null) {
+	    recs = new long[records];
+	    int n = 0;
+	    ByteBuffer ib = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+	    byte[] mstr = new byte[9];
+	    for (Path entry : reduce) {
+		try (SeekableByteChannel in = Files.newByteChannel(entry, EnumSet.of(StandardOpenOption.READ))) {
+		    while (in.read(ib) > 0) {
+			ib.flip();
+			while (ib.remaining() >= recordsize) {
+			    recs[n++] = Records.get(ib,mstr);
+			}
+			ib.compact(); // partial reads.
+		    }
+		}
+		ib.clear();
+	    }
+	    records = prune.apply(recs,n);
+	    System.out.println(prune);
+	}
 	
 	Charset utf8  = Charset.forName("UTF-8");
-	SeekableByteChannel out = Files.newByteChannel(new File(toFile).toPath(), EnumSet.of(StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE));//,);
+	FileChannel out = FileChannel.open(new File(toFile).toPath(), StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE);
 
          
         ByteBuffer bb = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN); // screw you, java
     
 	// write header
 	bb.put("MJG\n".getBytes(utf8)); // magic number
-	bb.put("2\n".getBytes(utf8)); // version
+	bb.put(String.format("%x\n",version).getBytes(utf8)); // version
 	bb.put("SIP-2-4\n".getBytes(utf8)); // hash
 	bb.put(String.format("%x\n",slicebits).getBytes(utf8)); // slice bits (hex)
 	bb.put("MGRS-1000\n".getBytes(utf8)); // coords
 	bb.put("4\n".getBytes(utf8)); // id size in bytes (hex)
-	bb.put("9\n".getBytes(utf8)); // coords size in bytes (hex)
+	bb.put(String.format("%x\n",Records.coordsize(version)).getBytes(utf8)); // coords size in bytes (hex)
 	bb.put(String.format("%x\n",records).getBytes(utf8)); // record count (hex)
 
 	bb.flip();
+
+	// .gz is written gzipped, deflated on threads threads as members that inflate to the plain m8b
+	if (toFile.endsWith(".gz") || toFile.endsWith(".GZ")) {
+	    byte[] header = Arrays.copyOf(bb.array(),bb.limit());
+	    if (recs != null) {
+		// pruned records are in memory, one member will do
+		try (GZIPOutputStream gz = new GZIPOutputStream(Channels.newOutputStream(out),1 << 16)) {
+		    gz.write(header);
+		    PartitionSorter.write(recs,records,Channels.newChannel(gz),version,new byte[9]);
+		}
+		return;
+	    }
+	    try {
+		GzipMembers gz = new GzipMembers(threads);
+		gz.write(header,reduce,version,out);
+		System.out.println(gz);
+	    } finally {
+		out.close();
+	    }
+	    return;
+	}
+
 	while (bb.hasRemaining()){
 	    out.write(bb);
 	}
 
-	// back to fill mode
-	bb.clear();
+	if (recs != null) {
+	    PartitionSorter.write(recs,records,out,version,new byte[9]);
+	    out.close();
+	    return;
+	}
 
+	// reduce files are version 2 records, copy them straight across or repack
+	ByteBuffer ib = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+	ByteBuffer ob = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+	byte[] mstr = new byte[9];
 
-	for (int i = 0; i < reduce.length; i++){
-	    Path entry = reduce[i];
-	    SeekableByteChannel in = Files.newByteChannel(entry, EnumSet.of(StandardOpenOption.READ));
-	    
-	    int read = in.read(bb);
-	    int idx=0;
-	    while (read > 0) {
-		bb.flip();
-		while (bb.hasRemaining()){
-		    out.write(bb);
+	for (Path entry : reduce) {
+	    try (FileChannel in = FileChannel.open(entry, StandardOpenOption.READ)) {
+		if (version != 3) {
+		    long size = in.size();
+		    for (long p = 0; p < size; ) {
+			p += in.transferTo(p,size-p,out);
+		    }
+		    continue;
+		}
+		while (in.read(ib) > 0) {
+		    ib.flip();
+		    while (ib.remaining() >= recordsize) {
+			if (ob.remaining() < Records.PACKEDSIZE) {
+			    ob.flip();
+			    while (ob.hasRemaining()){
+				out.write(ob);
+			    }
+			    ob.clear();
+			}
+			Records.putPacked(ob,Records.get(ib,mstr));
+		    }
+		    ib.compact();
 		}
-		bb.clear();
-		read = in.read(bb);
 	    }
 	}
-	bb.flip();
-	while (bb.hasRemaining()){
-	    out.write(bb);
+	ob.flip();
+	while (ob.hasRemaining()){
+	    out.write(ob);
 	}
 	out.close();
     }
 
+    /**
+     * build m8bFile's key filter sidecar for false positive rate fpp, nothing if fpp is null
+     */
+    private static void keyFilter(String m8bFile, String fpp) throws Exception {
+	if (fpp == null) {
+	    return;
+	}
+	Path p = new File(m8bFile).toPath();
+	try (M8bReader mjg = M8bReader.open(p)) {
+	    KeyFilter f = KeyFilter.build(mjg,Double.parseDouble(fpp));
+	    f.write(p);
+	    System.out.println("wrote "+KeyFilter.sidecar(p)+": "+f);
+	}
+    }
+
+    /**
+     * rewrite m8bFile as toFile in m8b version, same records in the same order
+     */
+    private static void convert(String m8bFile, String toFile, int version) throws Exception {
+	if (version < 2 || version > 4) {
+	    System.out.println("unsupported version:"+version);
+	    return;
+	}
+	M8bReader mjg;
+	try {
+	    mjg = M8bReader.open(new File(m8bFile).toPath());
+	} catch (IOException e) {
+	    System.out.println(e.getMessage());
+	    return;
+	}
+
+	Charset utf8  = Charset.forName("UTF-8");
+	SeekableByteChannel out = Files.newByteChannel(new File(toFile).toPath(), EnumSet.of(StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE));
+
+	ByteBuffer bb = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN); // screw you, java
+
+	// write header
+	bb.put("MJG\n".getBytes(utf8)); // magic number
+	bb.put(String.format("%x\n",version).getBytes(utf8)); // version
+	bb.put("SIP-2-4\n".getBytes(utf8)); // hash
+	bb.put(String.format("%x\n",mjg.slicebits).getBytes(utf8)); // slice bits (hex)
+	bb.put("MGRS-1000\n".getBytes(utf8)); // coords
+	bb.put("4\n".getBytes(utf8)); // id size in bytes (hex)
+	bb.put(String.format("%x\n",Records.coordsize(version)).getBytes(utf8)); // coords size in bytes (hex)
+	bb.put(String.format("%x\n",mjg.size()).getBytes(utf8)); // record count (hex)
+
+	if (version == 4) {
+	    bb.flip();
+	    while (bb.hasRemaining()){
+		out.write(bb);
+	    }
+	    try (BlockWriter bw = new BlockWriter(out)) {
+		mjg.forEach(bw::add);
+	    }
+	} else {
+	    int recordsize = Records.size(version);
+	    byte[] mstr = new byte[9];
+	    mjg.forEach((key,cell)->{
+		if (bb.remaining() < recordsize) {
+		    bb.flip();
+		    while (bb.hasRemaining()){
+			out.write(bb);
+		    }
+		    bb.clear();
+		}
+		bb.putInt(key);
+		if (version == 3) {
+		    bb.putInt(cell);
+		} else {
+		    mgrs.cellToBytes(cell,mstr,0);
+		    bb.put(mstr);
+		}
+	    });
+	    bb.flip();
+	    while (bb.hasRemaining()){
+		out.write(bb);
+	    }
+	    out.close();
+	}
+	mjg.close();
+
+	System.out.println("converted "+mjg.size()+" records from version "+mjg.version+" to "+version);
+    }
+
     private static void dumpi(String inFile) throws Exception {
 	int recordsize = 4+9;
 	Charset utf8  = Charset.forName("UTF-8");
@@ -1435,7 +1060,7 @@ public final class m8b {
 	int mgrsize = 9;
 	while (read > 0) {
 	    bb.flip();
-	    while ( bb.remaining() > recordsize ) {
+	    while ( bb.remaining() >= recordsize ) {
 		int id =  bb.getInt();
 
 		bb.get(tmp,0,mgrsize);
@@ -1464,17 +1089,19 @@ public final class m8b {
      * read mac from text string into macbytes. run siphahsh(skipkeky,macbytes) and mask  
      * the low-n bits (n=10 would only produce integer less than 1024)
      */
-    private static int extractIntKeyFrom(String mac, byte[] macbytes, SipKey sipkey, int n) {
+    static int extractIntKeyFrom(String mac, byte[] macbytes, SipKey sipkey, int n) {
 
+	long m = 0;
 	for ( int i = 0; i < macbytes.length; i++ ) {
 	    char hi = mac.charAt(i*3);
 	    char lo = mac.charAt(i*3+1);
 	    byte hib = (byte) ((nybbleFrom(hi) << 4) & 0xf0);
 	    byte lob = nybbleFrom(lo);
 	    macbytes[i] = (byte)( hib | lob);
+	    m = (m << 8) | (macbytes[i] & 0xff);
 	}
 	
-	long siph = SipHash.digest(sipkey, macbytes);
+	long siph = macbytes.length == 6 ? SipHash.digestMac(sipkey, m) : SipHash.digest(sipkey, macbytes);
 
 	long mask = (1L << n ) - 1;
 
@@ -1521,7 +1148,7 @@ public final class m8b {
     }
 
     /**
-     * read all of m8bFile into a data structure, then query against it for macs.
+     * binary search m8bFile inplace (memory mapped, or one inflated block for version 4) for the keys of macs, then query against them.
      * query algo looks like:
      *
      	  map&lt;coords,int%gt; sum
@@ -1537,120 +1164,183 @@ public final class m8b {
 	  // larger sums = more likely coords
      *
      */
-    private static void query(String m8bFile, String[] macs) throws Exception {
-	// rebuild m8b state from file:
+    private static void query(String m8bFile, String[] macs, int top) throws Exception {
+	M8bReader mjg;
+	try {
+	    mjg = M8bReader.open(new File(m8bFile).toPath());
+	} catch (IOException e) {
+	    System.out.println(e.getMessage());
+	    return;
+	}
 
-	Map<Integer,List<byte[]>> mjg = new TreeMap<Integer,List<byte[]>>();
+	Query.Result res = new Query(mjg).rank(top,macs);
+	mjg.close();
 
-	Charset utf8  = Charset.forName("UTF-8");
-	SeekableByteChannel in = Files.newByteChannel(new File(m8bFile).toPath(), EnumSet.of(StandardOpenOption.READ));//,);
+	System.out.println("loaded "+res.loaded());
 
-        ByteBuffer bb = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN); // screw you, java
-	int read = in.read(bb);
-	boolean header = true;
-	byte[] tmp = new byte[256];
-	int recordsize=-1;
-	int slicebits=0;
-	int mgrsize =0;
-	
-	while (read > 0) {
-	    bb.flip();
-	    if (header){
-		// read header
-		bb.get(tmp,0,tmp.length);
-		int offset=-1;
-		int linecount=0;
-		for ( int i = 0; i < tmp.length; i++ ) {
-		    if (tmp[i] == (byte)'\n') {
-			linecount++;
-			if ( linecount == 8 ) {
-			    offset = i;
-			    break;
-			}
-		    }
-		}
-		if (offset < 8) {
-		    System.out.println("malformed header");
-		    return;
-		}
-		String[] s = new String(tmp,0,offset,utf8).split("\n");
-		if (!"MJG".equals(s[0])){
-		    System.out.println("bad MaJGic");
-		    return;
-		}
-		int vers = Integer.parseInt(s[1]);
-		if (vers != 2) {
-		    System.out.println("unsupported version:"+vers);
-		    return;
-		}
-		if (!"SIP-2-4".equals(s[2])){
-		    System.out.println("unsupported hash:"+s[2]);
-		    return;
-		}
-		
-		slicebits = Integer.parseInt(s[3],16);
+	for (int i = 0; i < res.size(); i++) {
+	    System.out.printf("%s %d\n",res.coords(i),res.count(i));
+	}
+    }
 
-		if (!"MGRS-1000".equals(s[4])){
-		    System.out.println("unsupported coords:"+s[4]);
-		    return;
-		}
-		
-		mgrsize = Integer.parseInt(s[6],16);
-		recordsize = (Integer.parseInt(s[5],16)+ mgrsize);
-		bb.position(offset+1);
-		header = false;
-	    }
-	    while ( bb.remaining() > recordsize ) {
-		Integer kslice2 = Integer.valueOf( bb.getInt() );
-		byte[] mgrs = new byte[mgrsize]; // don't hold onto bloaty strings when we don't need to
-		bb.get(mgrs,0,mgrsize);
-		
-		List<byte[]> locs = mjg.get(kslice2);
-		if (locs==null){
-		    locs = new ArrayList<byte[]>();
-		    mjg.put(kslice2,locs);
-		}
-		locs.add(mgrs);
-	    }
-	    bb.compact(); // partial reads.
-	    read = in.read(bb);
+
+    /**
+     * answer every line of queryFile (macs separated by whitespace or commas) against m8bFile.
+     * the distinct keys of all the lines are looked up together in one pass, then each line
+     * is ranked as query would, and written to toFile as a "set n loaded m" line,
+     * its "coords count" lines, and a blank line.
+     */
+    private static void batch(String m8bFile, String queryFile, String toFile, int top) throws Exception {
+	M8bReader mjg;
+	try {
+	    mjg = M8bReader.open(new File(m8bFile).toPath());
+	} catch (IOException e) {
+	    System.out.println(e.getMessage());
+	    return;
 	}
-	
-	System.out.println("loaded "+mjg.size());
 
-	// execute query
 	SipKey sipkey = new SipKey(new byte[16]);
 	byte[] macbytes = new byte[6];
 
-	Map<String,int[]> lochist = new HashMap<String,int[]>();
-	
-	for ( String mac : macs ) {
-	    Integer kslice2 = extractKeyFrom(mac, macbytes, sipkey, slicebits);
+	List<String[]> sets = new ArrayList<>();
+	Set<Integer> keyset = new HashSet<Integer>();
+	try (BufferedReader br = Files.newBufferedReader(new File(queryFile).toPath(),Charset.forName("UTF-8"))) {
+	    String line;
+	    while ((line = br.readLine()) != null) {
+		String[] macs = line.trim().isEmpty() ? new String[0] : line.trim().split("[\\s,]+");
+		sets.add(macs);
+		for (String mac : macs) {
+		    keyset.add(extractKeyFrom(mac, macbytes, sipkey, mjg.slicebits));
+		}
+	    }
+	}
 
-	    List<byte[]> locs = mjg.get(kslice2);
-	    if (locs==null) {
-		continue;
+	long t0 = System.nanoTime();
+	int[] keys = keyset.stream().mapToInt(Integer::intValue).toArray();
+	int[][] cells = mjg.lookupAll(keys);
+	Map<Integer,int[]> found = new HashMap<>(keys.length*2);
+	long records = 0;
+	for (int i = 0; i < keys.length; i++) {
+	    found.put(keys[i],cells[i]);
+	    records += cells[i].length;
+	}
+	long t1 = System.nanoTime();
+	System.out.println(sets.size()+" sets, "+keys.length+" distinct keys, "+records+" records, looked up in "+((t1-t0)/1000000)+"ms");
+
+	Query q = new Query((key,c)->{
+	    int[] cs = found.get(key);
+	    for (int cell : cs) {
+		c.accept(cell);
+	    }
+	    return cs.length;
+	},mjg.slicebits);
+
+	try (BufferedWriter bw = Files.newBufferedWriter(new File(toFile).toPath(),Charset.forName("UTF-8"),StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE)) {
+	    for (int i = 0; i < sets.size(); i++) {
+		Query.Result res = q.rank(top,sets.get(i));
+		bw.write("set "+i+" loaded "+res.loaded()+"\n");
+		for (int j = 0; j < res.size(); j++) {
+		    bw.write(res.coords(j)+" "+res.count(j)+"\n");
+		}
+		bw.write("\n");
+	    }
+	}
+	mjg.close();
+	System.out.println("ranked "+sets.size()+" sets in "+((System.nanoTime()-t1)/1000000)+"ms");
+    }
+
+    /**
+     * rank every line of queryFile (as batch) against m8bFile and otherFile, report how much
+     * smaller other is and how its rankings differ: how often the best coords are the same,
+     * how far the best coord moved when it isn't (in km, when both are in one 100k square),
+     * and how much the top coords of the two rankings overlap.
+     */
+    private static void compare(String m8bFile, String otherFile, String queryFile, int top) throws Exception {
+	List<String> sets = new ArrayList<>();
+	try (BufferedReader br = Files.newBufferedReader(new File(queryFile).toPath(),Charset.forName("UTF-8"))) {
+	    String line;
+	    while ((line = br.readLine()) != null) {
+		if (!line.trim().isEmpty()) {
+		    sets.add(line.trim());
+		}
 	    }
+	}
 
-	    for ( byte[] locb : locs ) {
-		String loc = new String(locb,0,locb.length,utf8);
-		int[] val = lochist.get(loc);
-		if ( val == null ) {
-		    val = new int[]{0};
-		    lochist.put(loc,val);
+	try (M8bReader a = M8bReader.open(new File(m8bFile).toPath());
+	     M8bReader b = M8bReader.open(new File(otherFile).toPath())) {
+	    long asize = Files.size(new File(m8bFile).toPath());
+	    long bsize = Files.size(new File(otherFile).toPath());
+	    System.out.printf("records %d -> %d (%.1f%%), bytes %d -> %d (%.1f%%)\n",
+			      a.size(),b.size(),change(a.size(),b.size()),asize,bsize,change(asize,bsize));
+
+	    Query qa = new Query(a);
+	    Query qb = new Query(b);
+	    int answered = 0;
+	    int lost = 0;
+	    int same = 0;
+	    // moved best coords by distance: 1km, 2-10km, further in the same 100k square, another square
+	    int[] moved = new int[4];
+	    long overlap = 0;
+	    long possible = 0;
+	    for (String set : sets) {
+		String[] macs = set.split("[\\s,]+");
+		Query.Result ra = qa.rank(-1,macs);
+		if (ra.size() == 0) {
+		    continue;
 		}
-		val[0]++;
+		answered++;
+		Query.Result rb = qb.rank(-1,macs);
+		if (rb.size() == 0) {
+		    lost++;
+		    continue;
+		}
+		int km = km(ra.cell(0),rb.cell(0));
+		if (km == 0) {
+		    same++;
+		} else {
+		    moved[km < 0 ? 3 : km <= 1 ? 0 : km <= 10 ? 1 : 2]++;
+		}
+		int k = Math.min(top,ra.size());
+		CellHistogram topa = new CellHistogram(k);
+		for (int i = 0; i < k; i++) {
+		    topa.add(ra.cell(i));
+		}
+		for (int i = 0; i < Math.min(top,rb.size()); i++) {
+		    if (topa.get(rb.cell(i)) > 0) {
+			overlap++;
+		    }
+		}
+		possible += k;
 	    }
+	    System.out.printf("%d sets, %d answered, %d no longer answered\n",sets.size(),answered,lost);
+	    System.out.printf("same best coords %d (%.1f%%), top %d overlap %.1f%%\n",
+			      same,pct(same,answered),top,pct(overlap,possible));
+	    System.out.printf("best moved 1km %d (%.1f%%), 2-10km %d (%.1f%%), further %d (%.1f%%), to another 100k square %d (%.1f%%)\n",
+			      moved[0],pct(moved[0],answered),moved[1],pct(moved[1],answered),
+			      moved[2],pct(moved[2],answered),moved[3],pct(moved[3],answered));
 	}
+    }
 
-	List<Map.Entry<String,int[]>> es = new ArrayList<>(lochist.size()); // damn you java
-	es.addAll(lochist.entrySet());
-        Comparator<Map.Entry<String,int[]>> cmp = Comparator.comparingInt((Map.Entry<String,int[]> me)->me.getValue()[0]).reversed();
-	es.sort(cmp);
+    /**
+     * km between cells a and b (the larger of east/west and north/south), -1 if they're in different 100k squares
+     */
+    private static int km(int a, int b) {
+	// cell is ((100k square)*100+e)*100+n
+	if (a / 10000 != b / 10000) {
+	    return -1;
+	}
+	return Math.max(Math.abs(((a / 100) % 100) - ((b / 100) % 100)),Math.abs((a % 100) - (b % 100)));
+    }
 
-	es.forEach((me)->System.out.printf("%s %d\n",me.getKey(),me.getValue()[0]));
+    /** percent change from a to b */
+    private static double change(long a, long b) {
+	return a == 0 ? 0.0 : (100.0*(b-a))/a;
     }
 
+    /** n as a percent of of */
+    private static double pct(long n, long of) {
+	return of == 0 ? 0.0 : (100.0*n)/of;
+    }
 
     /**
      * read just enough of m8bFile to build minimal state to query, by filtering hard on macs
@@ -1670,18 +1360,20 @@ public final class m8b {
 	  // larger sums = more likely coords
      *
      */
-    private static void scan(String m8bFile, String[] macs) throws Exception {
+    private static void scan(String m8bFile, String[] macs, int top) throws Exception {
 	// rebuild minimal m8b state from file by filtering hard on macs:
 
 	SipKey sipkey = new SipKey(new byte[16]);
 	byte[] macbytes = new byte[6];
 
 	Set<Integer> keyset = new HashSet<Integer>();
-	List<Integer> keyring = new ArrayList<Integer>(macs.length);
 
 	Integer maxkey = Integer.valueOf(Integer.MIN_VALUE);
-		
-	Map<Integer,List<String>> mjg = new TreeMap<Integer,List<String>>();
+
+	// times each key is asked for, and the keys seen in the file
+	Map<Integer,int[]> wanted = new HashMap<Integer,int[]>();
+	Set<Integer> found = new HashSet<Integer>();
+	CellHistogram hist = new CellHistogram();
 
 	Charset utf8  = Charset.forName("UTF-8");
 	ReadableByteChannel in = Files.newByteChannel(new File(m8bFile).toPath(), EnumSet.of(StandardOpenOption.READ));//,);
@@ -1694,11 +1386,19 @@ public final class m8b {
 	
         ByteBuffer bb = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN); // screw you, java
 	int read = in.read(bb);
+	// a gzip read stops at the end of a member, which may come before the end of the header
+	for (int r = read; r > 0 && bb.hasRemaining(); ) {
+	    r = in.read(bb);
+	    if (r > 0) {
+		read += r;
+	    }
+	}
 	boolean header = true;
 	byte[] tmp = new byte[256];
 	int recordsize=-1;
 	int slicebits=0;
 	int mgrsize =0;
+	int vers = 0;
 
 	int lastid = -1;
 	Integer lastkey=null;
@@ -1710,7 +1410,7 @@ public final class m8b {
 	    bb.flip();
 	    if (header){
 		// read header
-		bb.get(tmp,0,tmp.length);
+		bb.get(tmp,0,Math.min(tmp.length,bb.remaining()));
 		int offset=-1;
 		int linecount=0;
 		for ( int i = 0; i < tmp.length; i++ ) {
@@ -1731,8 +1431,8 @@ public final class m8b {
 		    System.out.println("bad MaJGic");
 		    return;
 		}
-		int vers = Integer.parseInt(s[1]);
-		if (vers != 2) {
+		vers = Integer.parseInt(s[1]);
+		if (vers != 2 && vers != 3) {
 		    System.out.println("unsupported version:"+vers);
 		    return;
 		}
@@ -1754,19 +1454,26 @@ public final class m8b {
 		bb.position(offset+1);
 		header = false;
 
+		// keys the filter knows aren't there needn't be looked for, maybe none are left
+		KeyFilter kf = KeyFilter.open(new File(m8bFile).toPath(),slicebits,Long.parseLong(s[7],16));
+
 
 		for ( String mac : macs ) {
 		    Integer kslice2 = extractKeyFrom(mac, macbytes, sipkey, slicebits);
 		    keyset.add(kslice2);
-		    keyring.add(kslice2);
+		    wanted.computeIfAbsent(kslice2,(k)->new int[1])[0]++;
 		    if (kslice2.intValue() > maxkey.intValue() ){
 			maxkey = kslice2;
 		    }
 		}
 		maxid = maxkey.intValue();
 		System.out.println("maxid "+maxid);
+		if (kf != null) {
+		    keyset.removeIf((k)->!kf.mightContain(k));
+		    done = keyset.isEmpty();
+		}
 	    }
-	    while ( bb.remaining() > recordsize ) {
+	    while ( bb.remaining() >= recordsize && !done ) {
 		int id =  bb.getInt();
 		Integer kslice2 = null;
 		if ( id == lastid ) { // same as it was
@@ -1784,6 +1491,7 @@ public final class m8b {
 		    kslice2 = Integer.valueOf( id );
 		    if (keyset.contains(kslice2)){
 			lastkey = kslice2;
+			found.add(kslice2);
 		    } else {
 			lastkey = null;
 			// advance the buffer, check the next entry
@@ -1792,47 +1500,27 @@ public final class m8b {
 		    }
 		}
 
-		bb.get(tmp,0,mgrsize);
-		String mgrs = new String(tmp,0,mgrsize,utf8);
-
-		List<String> locs = mjg.get(kslice2);
-		if (locs==null){
-		    locs = new ArrayList<String>();
-		    mjg.put(kslice2,locs);
+		int cell;
+		if (vers == 3) {
+		    cell = bb.getInt();
+		} else {
+		    bb.get(tmp,0,mgrsize);
+		    cell = mgrs.cellFromBytes(tmp,0);
 		}
-		locs.add(mgrs);
+		// once per mac that asked for this key
+		hist.add(cell,wanted.get(kslice2)[0]);
 	    }
 	    bb.compact(); // partial reads.
 	    read = in.read(bb);
 	}
 	
-	System.out.println("loaded "+mjg.size());
-
-	// execute query
-	Map<String,int[]> lochist = new HashMap<String,int[]>();
-	
-	for ( Integer kslice2 : keyring ) {
-
-	    List<String> locs = mjg.get(kslice2);
-	    if (locs==null) {
-		continue;
-	    }
+	System.out.println("loaded "+found.size());
 
-	    for ( String loc : locs ) {
-		int[] val = lochist.get(loc);
-		if ( val == null ) {
-		    val = new int[]{0};
-		    lochist.put(loc,val);
-		}
-		val[0]++;
-	    }
+	// larger sums = more likely coords, ties in coords order
+	int[][] ranked = hist.top(top);
+	for (int i = 0; i < ranked[0].length; i++) {
+	    mgrs.cellToBytes(ranked[0][i],tmp,0);
+	    System.out.printf("%s %d\n",new String(tmp,0,9,utf8),ranked[1][i]);
 	}
-
-	List<Map.Entry<String,int[]>> es = new ArrayList<>(lochist.size()); // damn you java
-	es.addAll(lochist.entrySet());
-        Comparator<Map.Entry<String,int[]>> cmp = Comparator.comparingInt((Map.Entry<String,int[]> me)->me.getValue()[0]).reversed();
-	es.sort(cmp);
-
-	es.forEach((me)->System.out.printf("%s %d\n",me.getKey(),me.getValue()[0]));
     }
 }
@@ -21,6 +21,58 @@ public class SipHash {
         return s.digest();
     }
     
+    /**
+     * digest(key, the 6 bytes of mac), without the garbage.
+     * mac holds the address in its low 48 bits, first byte highest, so
+     * 8e:15:44:60:50:ac is 0x8e15446050acL.
+     */
+    public static long digestMac(SipKey key, long mac) {
+        // the only block is the last one: length 6 on top, the bytes little end first
+        long m = (6L << 56) | (Long.reverseBytes(mac) >>> 16);
+
+        long v0 = 0x736f6d6570736575L ^ key.k0;
+        long v1 = 0x646f72616e646f6dL ^ key.k1;
+        long v2 = 0x6c7967656e657261L ^ key.k0;
+        long v3 = 0x7465646279746573L ^ key.k1 ^ m;
+
+        // 2 compression rounds
+        v0 += v1; v2 += v3; v1 = Long.rotateLeft(v1, 13); v3 = Long.rotateLeft(v3, 16);
+        v1 ^= v0; v3 ^= v2; v0 = Long.rotateLeft(v0, 32);
+        v2 += v1; v0 += v3; v1 = Long.rotateLeft(v1, 17); v3 = Long.rotateLeft(v3, 21);
+        v1 ^= v2; v3 ^= v0; v2 = Long.rotateLeft(v2, 32);
+
+        v0 += v1; v2 += v3; v1 = Long.rotateLeft(v1, 13); v3 = Long.rotateLeft(v3, 16);
+        v1 ^= v0; v3 ^= v2; v0 = Long.rotateLeft(v0, 32);
+        v2 += v1; v0 += v3; v1 = Long.rotateLeft(v1, 17); v3 = Long.rotateLeft(v3, 21);
+        v1 ^= v2; v3 ^= v0; v2 = Long.rotateLeft(v2, 32);
+
+        v0 ^= m;
+        v2 ^= 0xff;
+
+        // 4 finalization rounds
+        v0 += v1; v2 += v3; v1 = Long.rotateLeft(v1, 13); v3 = Long.rotateLeft(v3, 16);
+        v1 ^= v0; v3 ^= v2; v0 = Long.rotateLeft(v0, 32);
+        v2 += v1; v0 += v3; v1 = Long.rotateLeft(v1, 17); v3 = Long.rotateLeft(v3, 21);
+        v1 ^= v2; v3 ^= v0; v2 = Long.rotateLeft(v2, 32);
+
+        v0 += v1; v2 += v3; v1 = Long.rotateLeft(v1, 13); v3 = Long.rotateLeft(v3, 16);
+        v1 ^= v0; v3 ^= v2; v0 = Long.rotateLeft(v0, 32);
+        v2 += v1; v0 += v3; v1 = Long.rotateLeft(v1, 17); v3 = Long.rotateLeft(v3, 21);
+        v1 ^= v2; v3 ^= v0; v2 = Long.rotateLeft(v2, 32);
+
+        v0 += v1; v2 += v3; v1 = Long.rotateLeft(v1, 13); v3 = Long.rotateLeft(v3, 16);
+        v1 ^= v0; v3 ^= v2; v0 = Long.rotateLeft(v0, 32);
+        v2 += v1; v0 += v3; v1 = Long.rotateLeft(v1, 17); v3 = Long.rotateLeft(v3, 21);
+        v1 ^= v2; v3 ^= v0; v2 = Long.rotateLeft(v2, 32);
+
+        v0 += v1; v2 += v3; v1 = Long.rotateLeft(v1, 13); v3 = Long.rotateLeft(v3, 16);
+        v1 ^= v0; v3 ^= v2; v0 = Long.rotateLeft(v0, 32);
+        v2 += v1; v0 += v3; v1 = Long.rotateLeft(v1, 17); v3 = Long.rotateLeft(v3, 21);
+        v1 ^= v2; v3 ^= v0; v2 = Long.rotateLeft(v2, 32);
+
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+    
     private static long lastBlock(byte[] data, int iter) {
         long last = ((long) data.length) << 56;
         int off = iter * 8;
@@ -6,18 +6,23 @@ package net.wigle.m8b.siphash;
  */
 public class SipKey {
     private final byte[] key;
+    // the halves are read once, here, not on every digest
+    final long k0;
+    final long k1;
     
     public SipKey(byte[] key) {
         if (key == null || key.length != 16)
             throw new RuntimeException("SipHash key must be 16 bytes");
         this.key = key;
+        this.k0 = UnsignedInt64.binToIntOffset(key, 0);
+        this.k1 = UnsignedInt64.binToIntOffset(key, 8);
     }
     
     long getLeftHalf() {
-       return UnsignedInt64.binToIntOffset(key, 0); 
+       return k0; 
     }
     
     long getRightHalf() {
-        return UnsignedInt64.binToIntOffset(key, 8); 
+        return k1; 
     }
 }
\ No newline at end of file
@@ -0,0 +1,226 @@
+package net.wigle.m8b;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import net.wigle.m8b.geodesy.mgrs;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * convert v2 -> v3 -> v4 keeps record order, and every version finds every key, whether
+ * the original was written in unsigned key order or in the legacy signed order.
+ */
+public class ConvertRoundTripTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /** n records, negatives of them with negative keys, in signed or unsigned key order */
+    private static long[] records(int n, int negatives, boolean signed, long seed) {
+	Random r = new Random(seed);
+	long[] recs = new long[n];
+	for (int i = 0; i < n; i++) {
+	    int key = r.nextInt() & Integer.MAX_VALUE;
+	    if (i < negatives) {
+		key |= Integer.MIN_VALUE;
+	    }
+	    recs[i] = Records.pack(key,r.nextInt(mgrs.ALLCELLS));
+	}
+	Arrays.sort(recs); // unsigned key order
+	if (signed) {
+	    // legacy generate order, negative keys first
+	    long[] s = new long[n];
+	    int j = 0;
+	    for (long rec : recs) {
+		if (Records.key(rec) < 0) {
+		    s[j++] = rec;
+		}
+	    }
+	    for (long rec : recs) {
+		if (Records.key(rec) >= 0) {
+		    s[j++] = rec;
+		}
+	    }
+	    recs = s;
+	}
+	return recs;
+    }
+
+    private File v2(String name, long[] recs) throws Exception {
+	ByteBuffer bb = ByteBuffer.allocate(64 + (recs.length * Records.RECORDSIZE)).order(ByteOrder.LITTLE_ENDIAN);
+	bb.put(String.format("MJG\n2\nSIP-2-4\n20\nMGRS-1000\n4\n9\n%x\n",recs.length).getBytes(StandardCharsets.UTF_8));
+	byte[] mstr = new byte[9];
+	for (long rec : recs) {
+	    Records.put(bb,rec,mstr);
+	}
+	File f = new File(tmp.getRoot(),name);
+	Files.write(f.toPath(),Arrays.copyOf(bb.array(),bb.position()));
+	return f;
+    }
+
+    private static void assertFindsAll(File f, long[] recs) throws Exception {
+	Map<Integer,List<Integer>> want = new TreeMap<>();
+	for (long rec : recs) {
+	    want.computeIfAbsent(Records.key(rec),(k)->new ArrayList<>()).add(Records.cell(rec));
+	}
+	try (M8bReader r = M8bReader.open(f.toPath())) {
+	    assertEquals(recs.length,r.size());
+	    List<Long> got = new ArrayList<>();
+	    r.forEach((key,cell)->got.add(Records.pack(key,cell)));
+	    assertEquals(f.getName(),recs.length,got.size());
+	    for (int i = 0; i < recs.length; i++) {
+		assertEquals(f.getName()+" record "+i,recs[i],(long)got.get(i));
+	    }
+	    int[] keys = new int[want.size()];
+	    int i = 0;
+	    for (Map.Entry<Integer,List<Integer>> me : want.entrySet()) {
+		// one by one for a sample of them, a block lookup inflates a whole block
+		if (i % 37 == 0 || i == want.size() - 1) {
+		    int[] cells = me.getValue().stream().mapToInt(Integer::intValue).sorted().toArray();
+		    int[] found = r.lookup(me.getKey());
+		    Arrays.sort(found);
+		    assertArrayEquals(f.getName()+" key "+me.getKey(),cells,found);
+		}
+		keys[i++] = me.getKey();
+	    }
+	    int[][] all = r.lookupAll(keys);
+	    for (i = 0; i < keys.length; i++) {
+		int[] cells = want.get(keys[i]).stream().mapToInt(Integer::intValue).sorted().toArray();
+		Arrays.sort(all[i]);
+		assertArrayEquals(f.getName()+" key "+keys[i],cells,all[i]);
+	    }
+	}
+    }
+
+    private void roundTrip(String name, long[] recs) throws Exception {
+	File v2 = v2(name+".v2.m8b",recs);
+	File v3 = new File(tmp.getRoot(),name+".v3.m8b");
+	File v4 = new File(tmp.getRoot(),name+".v4.m8b");
+	m8b.main(new String[]{"convert",v2.getPath(),v3.getPath(),"3"});
+	m8b.main(new String[]{"convert",v3.getPath(),v4.getPath(),"4"});
+	assertFindsAll(v2,recs);
+	assertFindsAll(v3,recs);
+	assertFindsAll(v4,recs);
+    }
+
+    @Test
+    public void lookupWhileWalkingBlocks() throws Exception {
+	// a sink that looks up may inflate another block on the same thread as forEach
+	long[] recs = records((3 * BlockWriter.BLOCKRECORDS) + 7,0,false,5);
+	File v2 = v2("nested.v2.m8b",recs);
+	File v4 = new File(tmp.getRoot(),"nested.v4.m8b");
+	m8b.main(new String[]{"convert",v2.getPath(),v4.getPath(),"4"});
+	try (M8bReader r = M8bReader.open(v4.toPath())) {
+	    List<Long> got = new ArrayList<>();
+	    int[] seen = {0};
+	    r.forEach((key,cell)->{
+		got.add(Records.pack(key,cell));
+		if (seen[0]++ % 1000 == 0) {
+		    try {
+			assertTrue(r.lookup(Records.key(recs[recs.length - 1 - seen[0]])).length > 0);
+		    } catch (IOException e) {
+			throw new AssertionError(e);
+		    }
+		}
+	    });
+	    assertEquals(recs.length,got.size());
+	    for (int i = 0; i < recs.length; i++) {
+		assertEquals("record "+i,recs[i],(long)got.get(i));
+	    }
+	}
+    }
+
+    @Test
+    public void lookupAllRepeatsAndMisses() throws Exception {
+	for (boolean signed : new boolean[]{false,true}) {
+	    long[] recs = records((2 * BlockWriter.BLOCKRECORDS) + 3,BlockWriter.BLOCKRECORDS,signed,6);
+	    File v2 = v2("repeat"+signed+".v2.m8b",recs);
+	    File v4 = new File(tmp.getRoot(),"repeat"+signed+".v4.m8b");
+	    m8b.main(new String[]{"convert",v2.getPath(),v4.getPath(),"4"});
+	    int hit = Records.key(recs[BlockWriter.BLOCKRECORDS + 1]);
+	    // keys of no record: before the first block, between records, after the last
+	    int[] keys = {hit,0,Records.key(recs[0]) - 1,hit,-1,hit + 1};
+	    try (M8bReader r = M8bReader.open(v4.toPath())) {
+		int[][] all = r.lookupAll(keys);
+		for (int i = 0; i < keys.length; i++) {
+		    int[] one = r.lookup(keys[i]);
+		    Arrays.sort(one);
+		    Arrays.sort(all[i]);
+		    assertArrayEquals("key "+keys[i],one,all[i]);
+		}
+		assertTrue(all[0].length > 0);
+		assertTrue(all[0] != all[3]);
+	    }
+	}
+    }
+
+    @Test
+    public void unsignedOrder() throws Exception {
+	roundTrip("unsigned",records(10000,5000,false,1));
+    }
+
+    @Test
+    public void signedOrderOneBlock() throws Exception {
+	roundTrip("signed1",records(59,30,true,2));
+    }
+
+    @Test
+    public void signedOrderManyBlocks() throws Exception {
+	roundTrip("signedn",records(10000,5000,true,3));
+    }
+
+    @Test
+    public void signedOrderOnlyLastBlockCrossesZero() throws Exception {
+	// every block starts with a negative key, the last one runs on into the positives
+	int n = (2 * BlockWriter.BLOCKRECORDS) + 100;
+	long[] recs = records(n,n - 20,true,4);
+	assertTrue(Records.key(recs[2 * BlockWriter.BLOCKRECORDS]) < 0);
+	roundTrip("signedlast",recs);
+    }
+}
@@ -0,0 +1,151 @@
+package net.wigle.m8b;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * a filter sidecar is only trusted for the m8b it was built from.
+ */
+public class KeyFilterTest {
+
+    private static final int SLICEBITS = 32;
+
+    private static final int MACS = 300;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /** name generated from n observations of prefix, with args after the slice bits */
+    private File generate(String name, int prefix, int n, String... args) throws Exception {
+	File obs = Observations.write(tmp.getRoot(),name+".txt",prefix,n);
+	File out = new File(tmp.getRoot(),name);
+	List<String> argv = new ArrayList<>(Arrays.asList("generate",obs.getPath(),out.getPath(),Integer.toString(SLICEBITS)));
+	argv.addAll(Arrays.asList(args));
+	m8b.main(argv.toArray(new String[argv.size()]));
+	return out;
+    }
+
+    private static void assertFindsAll(M8bReader r, int prefix) throws Exception {
+	assertEquals(MACS,r.size());
+	for (int i = 0; i < MACS; i++) {
+	    String mac = Observations.mac(prefix,i);
+	    assertEquals(mac,1,r.lookup(Query.key(mac,SLICEBITS)).length);
+	}
+    }
+
+    @Test
+    public void usedForItsOwnM8b() throws Exception {
+	File out = generate("a.m8b",1,MACS,"--filter","0.01");
+	try (M8bReader r = M8bReader.open(out.toPath())) {
+	    assertNotNull(r.filter);
+	    assertFindsAll(r,1);
+	}
+    }
+
+    @Test
+    public void staleFilterIgnored() throws Exception {
+	File out = generate("a.m8b",1,MACS,"--filter","0.01");
+	byte[] sidecar = Files.readAllBytes(KeyFilter.sidecar(out.toPath()));
+
+	// same slicebits and record count, other keys, swapped in with the old sidecar left behind
+	File rebuilt = generate("b.m8b",2,MACS);
+	Files.move(rebuilt.toPath(),out.toPath(),StandardCopyOption.REPLACE_EXISTING);
+	assertArrayEquals(sidecar,Files.readAllBytes(KeyFilter.sidecar(out.toPath())));
+	try (M8bReader r = M8bReader.open(out.toPath())) {
+	    assertNull(r.filter);
+	    assertFindsAll(r,2);
+	}
+
+	// rebuilt for it, it's used again
+	m8b.main(new String[]{"filter",out.getPath(),"0.01"});
+	try (M8bReader r = M8bReader.open(out.toPath())) {
+	    assertNotNull(r.filter);
+	    assertFindsAll(r,2);
+	}
+    }
+
+    @Test
+    public void oneRecordChangedIgnored() throws Exception {
+	// the same size, only one key in the middle moved, far from both ends
+	int n = 60000;
+	File out = generate("big.m8b",3,n,"--filter","0.01");
+	byte[] b = Files.readAllBytes(out.toPath());
+	int body = 0;
+	for (int lines = 0; lines < 8; body++) {
+	    if (b[body] == '\n') {
+		lines++;
+	    }
+	}
+	ByteBuffer bb = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+	int at = body + ((n / 2) * Records.RECORDSIZE);
+	int moved = bb.getInt(at) - 1;
+	assertTrue(Integer.compareUnsigned(moved,bb.getInt(at - Records.RECORDSIZE)) > 0);
+	bb.putInt(at,moved);
+	Files.write(out.toPath(),b);
+	try (M8bReader r = M8bReader.open(out.toPath())) {
+	    assertNull(r.filter);
+	    assertEquals(1,r.lookup(moved).length);
+	}
+    }
+
+    @Test
+    public void unfingerprintedFilterIgnored() throws Exception {
+	File out = generate("a.m8b",1,MACS);
+	// a version 1 sidecar, no fingerprint, claiming no keys at all
+	String header = String.format("MJGF\n1\nBLOOM\n%x\n%x\n%x\n40\n1\n",SLICEBITS,MACS,MACS);
+	byte[] b = new byte[header.length() + 8];
+	System.arraycopy(header.getBytes(StandardCharsets.US_ASCII),0,b,0,header.length());
+	Files.write(KeyFilter.sidecar(out.toPath()),b);
+	try (M8bReader r = M8bReader.open(out.toPath())) {
+	    assertNull(r.filter);
+	    assertFindsAll(r,1);
+	}
+    }
+}
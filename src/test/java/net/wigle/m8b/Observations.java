@@ -0,0 +1,76 @@
+package net.wigle.m8b;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * observation files for tests: distinct macs, one sighting each, along a line north east from 40,-75.
+ */
+final class Observations {
+
+    private Observations() {}
+
+    /** the i-th mac of prefix's lines */
+    static String mac(int prefix, int i) {
+	return String.format("00:%02x:22:33:%02x:%02x",prefix,i / 256,i % 256);
+    }
+
+    /** the header line and n lines of mac(prefix,i)|lat|lon, so n records whatever the prefix */
+    static List<String> lines(int prefix, int n) {
+	List<String> lines = new ArrayList<>();
+	lines.add("bssid|bestlat|bestlon");
+	for (int i = 0; i < n; i++) {
+	    // every thousand lines the line starts over, lat stays below 50
+	    int j = i % 1000;
+	    lines.add(String.format("%s|%.6f|%.6f",mac(prefix,i),40.0 + (j * 0.01),-75.0 + (j * 0.02)));
+	}
+	return lines;
+    }
+
+    /** lines written to dir/name */
+    static File write(File dir, String name, List<String> lines) throws IOException {
+	File f = new File(dir,name);
+	Files.write(f.toPath(),lines,StandardCharsets.UTF_8);
+	return f;
+    }
+
+    /** lines(prefix,n) written to dir/name */
+    static File write(File dir, String name, int prefix, int n) throws IOException {
+	return write(dir,name,lines(prefix,n));
+    }
+}
@@ -0,0 +1,114 @@
+package net.wigle.m8b;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.stream.Stream;
+import net.wigle.m8b.geodesy.mgrs;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * sorting in many runs, merged over several passes, writes what sorting in memory does.
+ */
+public class PartitionSorterTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /** n intermediate records, keys and cells drawn small enough to repeat */
+    private Path part(int n) throws Exception {
+	Random rnd = new Random(n);
+	ByteBuffer bb = ByteBuffer.allocate(n * PartitionSorter.RECORDSIZE).order(ByteOrder.LITTLE_ENDIAN);
+	byte[] cell = new byte[9];
+	for (int i = 0; i < n; i++) {
+	    int key = rnd.nextInt(2000) - 1000;
+	    mgrs.cellToBytes(rnd.nextInt(50) * 7919,cell,0);
+	    bb.putInt(key).put(cell);
+	}
+	Path p = tmp.newFile("part").toPath();
+	Files.write(p,bb.array());
+	return p;
+    }
+
+    private static byte[] sort(PartitionSorter sorter, Path part, int version) throws Exception {
+	File out = new File(part.toFile().getParentFile(),"out"+version);
+	Files.deleteIfExists(out.toPath());
+	try (SeekableByteChannel oc = Files.newByteChannel(out.toPath(),StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE)) {
+	    sorter.sort(part,oc,version);
+	}
+	return Files.readAllBytes(out.toPath());
+    }
+
+    @Test
+    public void manyRunsMergeLikeMemory() throws Exception {
+	int n = 20000;
+	Path part = part(n);
+	for (int version = 2; version <= 3; version++) {
+	    byte[] want = sort(new PartitionSorter(n,1),part,version);
+	    // 200 runs of 100, merged 2 at a time
+	    PartitionSorter small = new PartitionSorter(100,1);
+	    assertEquals(2,PartitionSorter.fanin(100));
+	    assertArrayEquals(want,sort(small,part,version));
+	    assertEquals(200,small.spills);
+	}
+	// no runs left behind
+	try (Stream<Path> ls = Files.list(part.getParent())) {
+	    assertEquals(0,ls.filter((p)->p.getFileName().toString().contains(".run")).count());
+	}
+    }
+
+    @Test
+    public void budgetCoversMergeBuffers() {
+	for (long budget = 256 << 10; budget <= (8L << 30); budget *= 2) {
+	    long cost = PartitionSorter.cost(budget,Integer.MAX_VALUE);
+	    assertTrue(budget+" costs "+cost,cost <= budget);
+	    int c = PartitionSorter.capacity(budget,Integer.MAX_VALUE);
+	    assertTrue(PartitionSorter.fanin(c) <= PartitionSorter.FANIN);
+	}
+	assertEquals(PartitionSorter.FANIN,PartitionSorter.fanin(PartitionSorter.capacity(1L << 30,Integer.MAX_VALUE)));
+	// a partition that fits needs no merge buffers
+	assertEquals(1000L * PartitionSorter.ENTRYCOST,PartitionSorter.cost(1L << 30,1000));
+    }
+}
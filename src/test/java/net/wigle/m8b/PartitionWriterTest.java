@@ -0,0 +1,97 @@
+package net.wigle.m8b;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * however many partitions and whatever -b asks for, the buffers fit the pool and every record lands.
+ */
+public class PartitionWriterTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private void check(int partitions, int buffer, boolean behind) throws Exception {
+	File dir = tmp.newFolder();
+	Path[] paths = new Path[partitions];
+	for (int i = 0; i < partitions; i++) {
+	    paths[i] = new File(dir,"part_"+i).toPath();
+	}
+	int records = 20 * partitions + 12345;
+	byte[] mgrs = new byte[Ingest.MGRSIZE];
+	try (PartitionWriter out = new PartitionWriter(paths,buffer,behind)) {
+	    assertTrue(out.pooled+" pooled",out.pooled <= PartitionWriter.POOL);
+	    for (int r = 0; r < records; r++) {
+		mgrs[0] = (byte)r;
+		out.put(r % partitions,r,mgrs,0);
+	    }
+	}
+	// partition i holds i, i+partitions, ... in order
+	for (int i = 0; i < partitions; i++) {
+	    ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(paths[i])).order(ByteOrder.LITTLE_ENDIAN);
+	    int n = 0;
+	    for (int r = i; r < records; r += partitions, n++) {
+		assertEquals(r,bb.getInt());
+		byte[] got = new byte[Ingest.MGRSIZE];
+		bb.get(got);
+		mgrs[0] = (byte)r;
+		assertArrayEquals(mgrs,got);
+	    }
+	    assertEquals(0,bb.remaining());
+	}
+    }
+
+    @Test
+    public void fewPartitions() throws Exception {
+	check(16,0,false);
+	check(16,16 << 20,true);
+    }
+
+    @Test
+    public void manyPartitionsStayInPool() throws Exception {
+	check(4096,0,false);
+	check(4096,1 << 20,true);
+	check(4096,64 << 10,false);
+    }
+}
@@ -0,0 +1,75 @@
+package net.wigle.m8b;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * a coord goes only for a dominator with more records, twins tie on every query so both stay.
+ */
+public class PruneTest {
+
+    // three coords in one 100k square, a few km apart
+    private static final int A = 5000000;
+    private static final int B = A + 101;
+    private static final int C = A + 202;
+
+    /** packed records in key order */
+    private static long[] records(long... recs) {
+	long[] r = recs.clone();
+	Arrays.sort(r);
+	return r;
+    }
+
+    @Test
+    public void twinsBothStay() {
+	// A and B both see keys 1 and 2, C only key 1
+	long[] recs = records(Records.pack(1,A),Records.pack(2,A),Records.pack(1,B),Records.pack(2,B),Records.pack(1,C));
+	Prune p = Prune.policy("all");
+	int n = p.apply(recs,recs.length);
+	assertArrayEquals(records(Records.pack(1,A),Records.pack(2,A),Records.pack(1,B),Records.pack(2,B)),Arrays.copyOf(recs,n));
+	assertEquals(1,p.dropped);
+    }
+
+    @Test
+    public void nearKeepsFarDominated() {
+	long[] recs = records(Records.pack(1,A),Records.pack(2,A),Records.pack(1,C));
+	int n = Prune.policy("near:1").apply(recs,recs.length);
+	assertEquals(3,n);
+	n = Prune.policy("near:2").apply(recs,recs.length);
+	assertEquals(2,n);
+    }
+}
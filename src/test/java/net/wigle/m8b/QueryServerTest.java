@@ -0,0 +1,173 @@
+package net.wigle.m8b;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * what serve answers, and counts, for good and bad queries and an m8b that stops reading.
+ */
+public class QueryServerTest {
+
+    private static final String MAC = Observations.mac(0x11,7);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private M8bReader mjg;
+    private QueryServer qs;
+    private HttpServer hs;
+    /** the version 3 m8b the served one was converted from, scan reads it */
+    private File flat;
+
+    @After
+    public void stop() throws Exception {
+	if (hs != null) {
+	    hs.stop(0);
+	}
+	if (mjg != null) {
+	    mjg.close();
+	}
+    }
+
+    /** a version 4 m8b of a few hundred macs, served on some free loopback port */
+    private File serve() throws Exception {
+	File obs = Observations.write(tmp.getRoot(),"obs.txt",0x11,300);
+	flat = new File(tmp.getRoot(),"q3.m8b");
+	File out = new File(tmp.getRoot(),"q.m8b");
+	m8b.main(new String[]{"generate",obs.getPath(),flat.getPath(),"32"});
+	m8b.main(new String[]{"convert",flat.getPath(),out.getPath(),"4"});
+
+	mjg = M8bReader.open(out.toPath());
+	qs = new QueryServer(mjg);
+	hs = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),0),0);
+	hs.createContext("/query",qs::query);
+	hs.createContext("/stats",qs::stats);
+	hs.start();
+	return out;
+    }
+
+    /** status code and body of GET path */
+    private String[] get(String path) throws Exception {
+	URL u = new URL("http://"+InetAddress.getLoopbackAddress().getHostAddress()+":"+hs.getAddress().getPort()+path);
+	HttpURLConnection c = (HttpURLConnection)u.openConnection();
+	int code = c.getResponseCode();
+	ByteArrayOutputStream bo = new ByteArrayOutputStream();
+	try (InputStream in = code < 400 ? c.getInputStream() : c.getErrorStream()) {
+	    byte[] b = new byte[4096];
+	    for (int n; (n = in.read(b)) > 0; ) {
+		bo.write(b,0,n);
+	    }
+	}
+	return new String[]{Integer.toString(code),new String(bo.toByteArray(),StandardCharsets.UTF_8)};
+    }
+
+    private String stat(String name) throws Exception {
+	for (String line : get("/stats")[1].split("\n")) {
+	    if (line.startsWith(name+" ")) {
+		return line.substring(name.length()+1);
+	    }
+	}
+	return null;
+    }
+
+    @Test
+    public void answersAndCountsErrors() throws Exception {
+	serve();
+	String[] ok = get("/query?mac="+MAC);
+	assertEquals("200",ok[0]);
+	assertTrue(ok[1],ok[1].startsWith("loaded 1\n"));
+
+	assertEquals("400",get("/query?mac="+MAC+"&top=x")[0]);
+	assertEquals("2",stat("requests"));
+	assertEquals("1",stat("errors"));
+    }
+
+    @Test
+    public void loadedCountsKeysAsScanDoes() throws Exception {
+	File out = serve();
+	// the same mac twice is one key loaded, hit twice
+	String[] r = get("/query?mac="+MAC+","+MAC);
+	assertEquals("200",r[0]);
+	assertTrue(r[1],r[1].startsWith("loaded 1\n"));
+	assertTrue(r[1],r[1].endsWith(" 2\n"));
+
+	PrintStream was = System.out;
+	ByteArrayOutputStream bo = new ByteArrayOutputStream();
+	System.setOut(new PrintStream(bo,true,"UTF-8"));
+	try {
+	    m8b.main(new String[]{"query",out.getPath(),MAC,MAC});
+	    m8b.main(new String[]{"scan",flat.getPath(),MAC,MAC});
+	} finally {
+	    System.setOut(was);
+	}
+	String printed = new String(bo.toByteArray(),StandardCharsets.UTF_8);
+	int loaded = 0;
+	for (String line : printed.split("\n")) {
+	    if (line.startsWith("loaded ")) {
+		assertEquals(printed,"loaded 1",line);
+		loaded++;
+	    }
+	}
+	assertEquals(printed,2,loaded);
+    }
+
+    @Test
+    public void unreadableM8bIs500() throws Exception {
+	File out = serve();
+	// the index is already read, the blocks it points at are gone
+	try (RandomAccessFile raf = new RandomAccessFile(out,"rw")) {
+	    raf.setLength(64);
+	}
+	String[] r = get("/query?mac="+MAC);
+	assertEquals(r[1],"500",r[0]);
+	assertEquals("1",stat("requests"));
+	assertEquals("1",stat("errors"));
+    }
+}
@@ -0,0 +1,144 @@
+package net.wigle.m8b;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import net.wigle.m8b.geodesy.mgrs;
+import net.wigle.m8b.geodesy.utm;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/*
+ * Copyright (c) 2018, Hugh Kennedy, Robert Hagemann, Andrew Carra
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. Neither the name of the WiGLE.net nor Mimezine nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * a lon at (or rounding up to) 180 projects to zone 61, which has to survive every path.
+ */
+public class ZoneSixtyOneTest {
+
+    private static final double[] LATS = {10.0, -33.3, 0.0, 47.5, 83.9, -79.9};
+
+    private static final String MAC = "11:22:33:44:55:66";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte[] string(double lat, double lon) {
+	byte[] b = new byte[9];
+	mgrs.fromUtm(utm.fromLatLon(lat,lon)).populateBytes(b);
+	return b;
+    }
+
+    @Test
+    public void cellsRoundTrip() {
+	for (double lat : LATS) {
+	    byte[] s = string(lat,180.0);
+	    assertEquals("61",new String(s,0,2,StandardCharsets.US_ASCII));
+	    int cell = mgrs.cellFromBytes(s,0);
+	    assertTrue(cell >= mgrs.CELLS && cell < mgrs.ALLCELLS);
+	    byte[] back = new byte[9];
+	    mgrs.cellToBytes(cell,back,0);
+	    assertArrayEquals(s,back);
+	    assertEquals(cell,utm.toCell(lat,180.0));
+	}
+    }
+
+    @Test
+    public void cellsKeepStringOrder() {
+	// zone 61 sorts after zone 60, as the strings do
+	byte[] s60 = string(10.0,179.5);
+	byte[] s61 = string(10.0,180.0);
+	assertTrue(mgrs.cellFromBytes(s60,0) < mgrs.cellFromBytes(s61,0));
+	assertTrue(new String(s60,StandardCharsets.US_ASCII).compareTo(new String(s61,StandardCharsets.US_ASCII)) < 0);
+    }
+
+    @Test
+    public void toBytesWritesZone61() {
+	double[] lat = LATS.clone();
+	double[] lon = new double[lat.length];
+	Arrays.fill(lon,180.0);
+	byte[] out = new byte[lat.length*9];
+	utm.toBytes(lat,lon,lat.length,out);
+	for (int i = 0; i < lat.length; i++) {
+	    assertArrayEquals(string(lat[i],180.0),Arrays.copyOfRange(out,i*9,i*9+9));
+	}
+    }
+
+    /** a few ordinary lines and one at lon 180 */
+    private File observations() throws Exception {
+	List<String> lines = Observations.lines(0x11,200);
+	lines.add(MAC+"|10.0|180.0");
+	return Observations.write(tmp.getRoot(),"obs.txt",lines);
+    }
+
+    private static void assertFinds(File m8bFile, int slicebits) throws Exception {
+	int want = mgrs.cellFromBytes(string(10.0,180.0),0);
+	try (M8bReader r = M8bReader.open(m8bFile.toPath())) {
+	    assertEquals(201,r.size());
+	    assertArrayEquals(new int[]{want},r.lookup(Query.key(MAC,slicebits)));
+	}
+    }
+
+    @Test
+    public void generateKeepsLon180() throws Exception {
+	File obs = observations();
+	File out = new File(tmp.getRoot(),"gen.m8b");
+	m8b.main(new String[]{"generate",obs.getPath(),out.getPath(),"20"});
+	assertFinds(out,20);
+    }
+
+    @Test
+    public void unfKeepsLon180() throws Exception {
+	File obs = observations();
+	File stage = tmp.newFolder("un");
+	File out = new File(tmp.getRoot(),"unf.m8b");
+	m8b.main(new String[]{"unf",obs.getPath(),stage.getPath(),out.getPath(),"-v","3"});
+	assertFinds(out,32);
+    }
+
+    @Test
+    public void restageReduceCombineKeepLon180() throws Exception {
+	File obs = observations();
+	File stage = tmp.newFolder("rs");
+	File reduce = tmp.newFolder("rd");
+	File out = new File(tmp.getRoot(),"comb.m8b");
+	m8b.main(new String[]{"restage",obs.getPath(),stage.getPath()});
+	m8b.main(new String[]{"reduce",stage.getPath(),reduce.getPath(),"16"});
+	m8b.main(new String[]{"combine",reduce.getPath(),out.getPath(),"16"});
+	assertFinds(out,16);
+    }
+}